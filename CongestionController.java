@@ -0,0 +1,16 @@
+// Decides how many packets a sender may have in flight. RxPSocket sends at
+// most min(getWindow(), peer window) unacknowledged packets at a time.
+public interface CongestionController {
+
+  // Current congestion window, in packets. Always at least one.
+  int getWindow();
+
+  // New data was cumulatively ACKed.
+  void onAck(int packetsAcked, double smoothedRttMillis);
+
+  // A loss was detected while ACKs were still arriving.
+  void onLoss();
+
+  // The retransmission timer expired.
+  void onTimeout();
+}
@@ -1,56 +1,146 @@
-public class Connection {
-
-	private short destination;
-	private short source;
-
-	private boolean isClient; // True if Host Initiated Connection
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
-	private boolean isTryingToEstablish;
-	private boolean isAboutToEstablish;
-	private boolean isEstablished;
-	private boolean isAllowedToSendData;
-	private boolean isSendingData;
+// Handshake and teardown progress for one connection, packed into a single
+// int so that a packet moves it on with one compare-and-set. Both run
+// through fixed stages in order, each advanced by a packet carrying the
+// flags in HANDSHAKE_FLAGS or CLOSE_FLAGS.
+public class Connection {
 
-	private boolean isClientSentFIN;
-	private boolean isServerSentACK;
-	private boolean isServerSentFIN;
-	private boolean isClientSentACK;
+	// Handshake stages
+	public static final int NEW = 0;
+	public static final int TRYING_TO_ESTABLISH = 1;
+	public static final int ABOUT_TO_ESTABLISH = 2;
+	public static final int ESTABLISHED = 3;
+	public static final int ALLOWED_TO_SEND_DATA = 4;
+	public static final int SENDING_DATA = 5;
+
+	// Close stages
+	public static final int OPEN = 0;
+	public static final int CLIENT_SENT_FIN = 1;
+	public static final int SERVER_SENT_ACK = 2;
+	public static final int SERVER_SENT_FIN = 3;
+	public static final int CLIENT_SENT_ACK = 4;
+
+	private static final int FIN = RxPPacket.FIN_MASK;
+	private static final int SYN = RxPPacket.SYN_MASK;
+	private static final int ACK = RxPPacket.ACK_MASK;
+	private static final int PSH = RxPPacket.PSH_MASK;
+
+	// The packet that moves each handshake stage on must carry exactly
+	// these flags. The client sends the even ones and the server the odd.
+	static final int[] HANDSHAKE_FLAGS = {
+		SYN,
+		SYN | ACK,
+		SYN | ACK | PSH,
+		SYN | ACK | PSH | FIN,
+		SYN | ACK | FIN
+	};
+
+	// The packet that moves each close stage on must match these flags
+	// under CLOSE_MASKS, and is sent by the side in CLOSE_SENT_BY_CLIENT.
+	static final int[] CLOSE_FLAGS = { FIN, ACK, FIN, ACK };
+	private static final int[] CLOSE_MASKS = { FIN | ACK | SYN, FIN | ACK, FIN | ACK, FIN | ACK };
+	static final boolean[] CLOSE_SENT_BY_CLIENT = { true, false, false, true };
+
+	// Next stage for every stage and combination of packet flags
+	private static final byte[][] HANDSHAKE_NEXT = buildTable(HANDSHAKE_FLAGS, null);
+	private static final byte[][] CLOSE_NEXT = buildTable(CLOSE_FLAGS, CLOSE_MASKS);
+
+	// Layout of the state word
+	private static final int HANDSHAKE_BITS = 0b111;
+	private static final int CLOSE_SHIFT = 3;
+	private static final int CLOSE_BITS = 0b111;
+	private static final int CLIENT_BIT = 1 << 6; // Set if this host initiated the connection
+
+	private static final AtomicIntegerFieldUpdater<Connection> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Connection.class, "state");
+
+	private final short destination;
+	private final short source;
+
+	private volatile int state;
 
 	public Connection(short destination, short source) {
 
 		this.destination = destination;
 		this.source = source;
 
-		this.isClient = false;
+		this.state = NEW;
+	}
+
+	// Moves the handshake and close stages on for a packet carrying flags.
+	// Returns true if either changed.
+	public boolean advance(int flags) {
+		while (true) {
+			int current = state;
+			int handshake = current & HANDSHAKE_BITS;
+			int close = (current >> CLOSE_SHIFT) & CLOSE_BITS;
 
-		this.isTryingToEstablish = false;
-		this.isAboutToEstablish = false;
-		this.isEstablished = false;
-		this.isAllowedToSendData = false;
-		this.isSendingData = false;
+			int next = (current & CLIENT_BIT)
+					 | HANDSHAKE_NEXT[handshake][flags]
+					 | (CLOSE_NEXT[close][flags] << CLOSE_SHIFT);
 
-		this.isClientSentFIN = false;
-		this.isServerSentACK = false;
-		this.isServerSentFIN = false;
-		this.isClientSentACK = false;
+			if (next == current) {
+				return false;
+			}
+			if (STATE.compareAndSet(this, current, next)) {
+				return true;
+			}
+		}
+	}
+
+	// This host sent the first SYN
+	public void markClient() {
+		STATE.getAndUpdate(this, s -> s | CLIENT_BIT);
+	}
+
+	// Skips to the end of the handshake, e.g. when its last packet was lost
+	// but the peer has already started sending data.
+	public void markSendingData() {
+		STATE.getAndUpdate(this, s -> (s & ~HANDSHAKE_BITS) | SENDING_DATA);
 	}
 
 	public String connectionStateToString() {
 
 		String state = this.source + "  -->  " + this.destination
-					+ "\nisTryingToEstablish: " + (this.isTryingToEstablish ? "1" : "0")
-					+ "\nisAboutToEstablish: " + (this.isAboutToEstablish ? "1" : "0")
-					+ "\nisEstablished: " + (this.isEstablished ? "1" : "0")
-					+ "\nisAllowedToSendData: " + (this.isAllowedToSendData ? "1" : "0")
-					+ "\nisSendingData: " + (this.isSendingData ? "1" : "0");
+					+ "\nisTryingToEstablish: " + (this.isTryingToEstablish() ? "1" : "0")
+					+ "\nisAboutToEstablish: " + (this.isAboutToEstablish() ? "1" : "0")
+					+ "\nisEstablished: " + (this.isEstablished() ? "1" : "0")
+					+ "\nisAllowedToSendData: " + (this.isAllowedToSendData() ? "1" : "0")
+					+ "\nisSendingData: " + (this.isSendingData() ? "1" : "0");
 
 		return state;
 	}
 
-	/* Setters and Getters */
+	private static byte[][] buildTable(int[] stepFlags, int[] stepMasks) {
+		byte[][] table = new byte[stepFlags.length + 1][1 << 4];
+
+		for (int stage = 0; stage < table.length; stage++) {
+			for (int flags = 0; flags < table[stage].length; flags++) {
+				boolean moves = false;
+				if (stage < stepFlags.length) {
+					int mask = stepMasks == null ? 0b1111 : stepMasks[stage];
+					moves = (flags & mask) == stepFlags[stage];
+				}
+				table[stage][flags] = (byte) (moves ? stage + 1 : stage);
+			}
+		}
+
+		return table;
+	}
+
+	/* Getters */
+
+	public int getHandshakeStage() {
+	    return this.state & HANDSHAKE_BITS;
+	}
+
+	public int getCloseStage() {
+	    return (this.state >> CLOSE_SHIFT) & CLOSE_BITS;
+	}
 
 	public boolean isClient() {
-	    return this.isClient;
+	    return (this.state & CLIENT_BIT) != 0;
 	}
 
 	public short getDestination() {
@@ -62,87 +152,38 @@ public class Connection {
 	}
 
 	public boolean isTryingToEstablish() {
-	    return this.isTryingToEstablish;
+	    return getHandshakeStage() >= TRYING_TO_ESTABLISH;
 	}
 
 	public boolean isAboutToEstablish() {
-	    return this.isAboutToEstablish;
+	    return getHandshakeStage() >= ABOUT_TO_ESTABLISH;
 	}
 
 	public boolean isEstablished() {
-	    return this.isEstablished;
+	    return getHandshakeStage() >= ESTABLISHED;
 	}
 
 	public boolean isAllowedToSendData() {
-	    return this.isAllowedToSendData;
+	    return getHandshakeStage() >= ALLOWED_TO_SEND_DATA;
 	}
 
 	public boolean isSendingData() {
-	    return this.isSendingData;
+	    return getHandshakeStage() >= SENDING_DATA;
 	}
 
-
 	public boolean isClientSentFIN() {
-	    return this.isClientSentFIN;
+	    return getCloseStage() >= CLIENT_SENT_FIN;
 	}
 
 	public boolean isServerSentACK() {
-	    return this.isServerSentACK;
+	    return getCloseStage() >= SERVER_SENT_ACK;
 	}
 
 	public boolean isServerSentFIN() {
-	    return this.isServerSentFIN;
+	    return getCloseStage() >= SERVER_SENT_FIN;
 	}
 
 	public boolean isClientSentACK() {
-	    return this.isClientSentACK;
-	}
-
-	public void setIsClient(boolean isClient) {
-	    this.isClient = isClient;
-	}
-
-	public void setDestination(short destination) {
-	    this.destination = destination;
-	}
-
-	public void setSource(short source) {
-	    this.source = source;
-	}
-
-	public void setTryingToEstablish(boolean isTryingToEstablish) {
-	    this.isTryingToEstablish = isTryingToEstablish;
-	}
-
-	public void setAboutToEstablish(boolean isAboutToEstablish) {
-	    this.isAboutToEstablish = isAboutToEstablish;
-	}
-
-	public void setEstablished(boolean isEstablished) {
-	    this.isEstablished = isEstablished;
-	}
-
-	public void setAllowedToSendData(boolean isAllowedToSendData) {
-	    this.isAllowedToSendData = isAllowedToSendData;
-	}
-
-	public void setSendingData(boolean isSendingData) {
-	    this.isSendingData = isSendingData;
-	}
-
-	public void setClientSentFIN(boolean isClientSentFIN) {
-	    this.isClientSentFIN = isClientSentFIN;
-	}
-
-	public void setServerSentACK(boolean isServerSentACK) {
-	    this.isServerSentACK = isServerSentACK;
-	}
-
-	public void setServerSentFIN(boolean isServerSentFIN) {
-	    this.isServerSentFIN = isServerSentFIN;
-	}
-
-	public void setClientSentACK(boolean isClientSentACK) {
-	    this.isClientSentACK = isClientSentACK;
+	    return getCloseStage() >= CLIENT_SENT_ACK;
 	}
-}
\ No newline at end of file
+}
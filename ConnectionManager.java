@@ -1,256 +1,81 @@
-import java.util.List;
-import java.util.ArrayList;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionManager {
 
-	private List<Connection> connectionList;
+	// Header-only packets for every combination of flags, built once. The
+	// handshake, close and terminate packets are copies of these with the
+	// ports and sequence numbers filled in, so they are the size of a bare
+	// header rather than a data packet.
+	private static final byte[][] CONTROL_TEMPLATES = buildControlTemplates();
+
+	// Each RxPSocket owns its own manager, holding the connection to its
+	// one peer. That socket's reader, its background receiver and whoever
+	// is closing it may all look the connection up at once. Lookups are a
+	// single hash probe and never block; each connection's state is
+	// advanced by a compare-and-set on its own state word (see
+	// Connection), so nothing is locked at all.
+	private ConcurrentHashMap<ConnectionKey, Connection> connections;
 
 	public ConnectionManager() {
-		this.connectionList = new ArrayList<>();
+		this.connections = new ConcurrentHashMap<>();
 	}
 
-	// Return a connection in the connectionList
-	public Connection getConnection(RxPPacket packet) {
-		// if connection does not exist create a new connection
-
-		short destination = packet.getDestPort();
-		short source = packet.getSrcPort();
-
-		// Does this connection already exist?
-		for (Connection c : connectionList) {
-
-			if ((c.getDestination() == destination && c.getSource() == source) || (c.getDestination() == source && c.getSource() == destination)) {
-				return c;
-			}
-		}
-
-		// Create a new connection
-		Connection connection = new Connection(destination, source);
-		connectionList.add(connection);
-		return connection;
+	// Return the connection a packet to or from address belongs to
+	public Connection getConnection(InetAddress address, RxPPacket packet) {
+		return getConnection(address, packet.getDestPort(), packet.getSrcPort());
 	}
 
-	// Return a connection in the connectionList
-	public Connection getConnection(short destination, short source) {
+	// Return the connection between the two ports with the host at address
+	public Connection getConnection(InetAddress address, short destination, short source) {
 		// if connection does not exist create a new connection
-
-		// Does this connection already exist?
-		for (Connection c : connectionList) {
-
-			if ((c.getDestination() == destination && c.getSource() == source) || (c.getDestination() == source && c.getSource() == destination)) {
-				return c;
-			}
-		}
-
-		// Create a new connection
-		Connection connection = new Connection(destination, source);
-		connectionList.add(connection);
-		return connection;
+		return connections.computeIfAbsent(new ConnectionKey(address, destination, source),
+				key -> new Connection(destination, source));
 	}
 
-	public boolean updateConnection(RxPPacket packet) {
-		// System.out.print.println(this.getConnectionPacketStatus(packet));
-
-		boolean connectionUpdated = false; // return this
-
-		Connection c = this.getConnection(packet);
-
-		/* Establishing Connection */
-
-		if (!c.isTryingToEstablish()) {
-
-			// Does packet contain JUST a SYN?
-			if (packet.isSYN() && !packet.isACK() && !packet.isPSH() && !packet.isFIN()) {
-
-				c.setTryingToEstablish(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setTryingToEstablish");
-			}
-		}
-
-		// Connection could be entering "About To Establish" state
-		if (c.isTryingToEstablish() && !c.isAboutToEstablish()) {
+	public boolean updateConnection(InetAddress address, RxPPacket packet) {
+		// System.out.print.println(this.getConnectionPacketStatus(this.getConnection(address, packet), packet));
 
-			// Does packet contain JUST a SYN - ACK?
-			if (packet.isSYN() && packet.isACK() && !packet.isPSH() && !packet.isFIN()) {
+		int flags = packet.getFlags();
 
-				c.setAboutToEstablish(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setAboutToEstablish");
-			}
-		}
-
-		// Connection could be entering "Establish" state
-		if (c.isTryingToEstablish() && c.isAboutToEstablish() && !c.isEstablished()) {
-
-			// Does packet contain JUST a SYN - ACK - PSH?
-			if (packet.isSYN() && packet.isACK() && packet.isPSH() && !packet.isFIN()) {
-
-				c.setEstablished(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setEstablished");
-			}
-		}
-
-		// Connection could be entering "Allowed To Send Data" state
-		if (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && !c.isAllowedToSendData()) {
-
-			// Does packet contain JUST a SYN - ACK - PSH - FIN?
-			if (packet.isSYN() && packet.isACK() && packet.isPSH() && packet.isFIN()) {
-
-				c.setAllowedToSendData(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setAllowedToSendData");
-			}
-		}
-
-		// Connection could be entering "Sending Data" state
-		if (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && c.isAllowedToSendData() & !c.isSendingData()) {
-
-			// Does packet contain JUST a SYN - ACK - FIN?
-			if (packet.isSYN() && packet.isACK() && !packet.isPSH() && packet.isFIN()) {
-
-				c.setSendingData(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setSendingData");
-			}
-		}
-
-		/* Closing Connection */
-
-		if (!c.isClientSentFIN()) {
-
-			if (packet.isFIN() && !packet.isACK() && !packet.isSYN()) {
-
-				c.setClientSentFIN(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setClientSentFIN");
-			}
+		// Every handshake and close packet has a SYN, ACK or FIN, so a data
+		// packet can go without even looking the connection up
+		if ((flags & (RxPPacket.SYN_MASK | RxPPacket.ACK_MASK | RxPPacket.FIN_MASK)) == 0) {
+			return false;
 		}
 
-		if (c.isClientSentFIN() && !c.isServerSentACK()) {
-
-			if (!packet.isFIN() && packet.isACK()) {
-
-				c.setServerSentACK(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setServerSentACK");
-			}
-		}
-
-		if (c.isClientSentFIN() && c.isServerSentACK() && !c.isServerSentFIN()) {
-
-			if (packet.isFIN() && !packet.isACK()) {
-
-				c.setServerSentFIN(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setServerSentFIN");
-			}
-		}
-
-		if (c.isClientSentFIN() && c.isServerSentACK() && c.isServerSentFIN() && !c.isClientSentACK()) {
-
-			if (!packet.isFIN() && packet.isACK()) {
-
-				c.setClientSentACK(true);
-				connectionUpdated = true;
-				// System.out.print.println("updated: setClientSentACK");
-			}
-		}
-
-		// System.out.print.println("connectionUpdated: " + connectionUpdated);
-		return connectionUpdated;
+		return this.getConnection(address, packet).advance(flags);
 	}
 
 	public RxPPacket getNextHandshakePacket(Connection c) {
+		return handshakePacket(c, c.getHandshakeStage());
+	}
+
+	// Builds the packet that moves the peer on from the given handshake
+	// stage, if it is ours to send, or else an empty control packet
+	private RxPPacket handshakePacket(Connection c, int stage) {
 
 		short src = c.getSource(),
 			  dest = c.getDestination();
 
 		int seqNum = 0,
-			ackNum = 0;
-
-		boolean syn = false,
-				ack = false,
-				psh = false,
-				fin = false;
-
-		// If the initiater of the handshake receives a connection established flag, DO NOT send anymore handshake packets
-		// if (c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished())) {
-		// 	return null;
-		// }
-
-		if (!c.isTryingToEstablish()) {
-
-			seqNum = 1;
-
-			syn = true;
+			flags = 0;
 
+		if (stage == Connection.NEW) {
 			// This is the beginning of the handshake
-			c.setIsClient(true);
-
-			// System.out.print.println("TryingToEstablish");
+			c.markClient();
 		}
 
-		// Connection could be entering "About To Establish" state
-		if (!c.isClient() && (c.isTryingToEstablish() && !c.isAboutToEstablish())) {
-
-			seqNum = 2;
-
-			syn = true;
-			ack = true;
-
-			// System.out.print.println("AboutToEstablish");
-		}
-
-		// Connection could be entering "Establish" state
-		if (c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && !c.isEstablished())) {
-
-			seqNum = 3;
-
-			syn = true;
-			ack = true;
-			psh = true;
-
-			// System.out.print.println("Established");
+		// The client sends the packets for even stages, the server the odd
+		if (stage >= Connection.NEW && stage < Connection.SENDING_DATA && c.isClient() == (stage % 2 == 0)) {
+			seqNum = stage + 1;
+			flags = Connection.HANDSHAKE_FLAGS[stage];
+			// System.out.print.println("Handshake " + seqNum);
 		}
 
-		// Connection could be entering "Allowed To Send Data" state
-		if (!c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && !c.isAllowedToSendData())) {
-
-			seqNum = 4;
-
-			syn = true;
-			ack = true;
-			psh = true;
-			fin = true;
-			// System.out.print.println("AllowedToSendData");
-		}
-
-		// Connection could be entering "Sending Data" state
-		if (c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && c.isAllowedToSendData() && !c.isSendingData())) {
-
-			seqNum = 5;
-
-			syn = true;
-			ack = true;
-			psh = false;
-			fin = true;
-			// System.out.print.println("SendingData");
-		}
-
-		RxPPacket newPacket = new RxPPacket(src,
-                                  dest,
-                                  seqNum,
-                                  ackNum,
-                                  fin,
-                                  syn,
-                                  ack,
-                                  psh);
-
-		newPacket.setChecksum(newPacket.calculateChecksum());
-
-		return newPacket;
+		return newControlPacket(src, dest, seqNum, 0, flags);
 	}
 
 	public RxPPacket getTerminatePacket(Connection c) {
@@ -266,113 +91,21 @@ public class ConnectionManager {
 				psh = true,
 				fin = true;
 
-		RxPPacket newPacket = new RxPPacket(src,
-                                  dest,
-                                  seqNum,
-                                  ackNum,
-                                  fin,
-                                  syn,
-                                  ack,
-                                  psh);
-
-		newPacket.setChecksum(newPacket.calculateChecksum());
-
-		return newPacket;
+		return newControlPacket(src, dest, seqNum, ackNum, fin, syn, ack, psh);
 	}
 
 	public boolean isTerminatePacket(RxPPacket p) {
 		return p.getSeqNum() == 666 && (p.isSYN() && p.isPSH() && p.isFIN());
 	}
 
+	// Resends the handshake packet that moved the connection to its
+	// current stage
 	public RxPPacket getLastHandshakePacket(Connection c) {
-
-		short src = c.getSource(),
-			  dest = c.getDestination();
-
-		int seqNum = 0,
-			ackNum = 0;
-
-		boolean syn = false,
-				ack = false,
-				psh = false,
-				fin = false;
-
-
-		if (c.isTryingToEstablish() && !c.isAboutToEstablish()) {
-
-			seqNum = 1;
-
-			syn = true;
-
-			// This is the beginning of the handshake
-			c.setIsClient(true);
-
-			// System.out.print.println("TryingToEstablish");
-		}
-
-		// Connection could be entering "About To Establish" state
-		if (!c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && !c.isEstablished())) {
-
-			seqNum = 2;
-
-			syn = true;
-			ack = true;
-
-			// System.out.print.println("AboutToEstablish");
-		}
-
-		// Connection could be entering "Establish" state
-		if (c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && !c.isAllowedToSendData())) {
-
-			seqNum = 3;
-
-			syn = true;
-			ack = true;
-			psh = true;
-
-			// System.out.print.println("Established");
-		}
-
-		// Connection could be entering "Allowed To Send Data" state
-		if (!c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && c.isAllowedToSendData())) {
-
-			seqNum = 4;
-
-			syn = true;
-			ack = true;
-			psh = true;
-			fin = true;
-			// System.out.print.println("AllowedToSendData");
-		}
-
-		// Connection could be entering "Sending Data" state
-		if (c.isClient() && (c.isTryingToEstablish() && c.isAboutToEstablish() && c.isEstablished() && c.isAllowedToSendData() && c.isSendingData())) {
-
-			seqNum = 5;
-
-			syn = true;
-			ack = true;
-			psh = false;
-			fin = true;
-			// System.out.print.println("SendingData");
-		}
-
-		RxPPacket newPacket = new RxPPacket(src,
-                                  dest,
-                                  seqNum,
-                                  ackNum,
-                                  fin,
-                                  syn,
-                                  ack,
-                                  psh);
-
-		newPacket.setChecksum(newPacket.calculateChecksum());
-
-		return newPacket;
+		return handshakePacket(c, c.getHandshakeStage() - 1);
 	}
 
-	public List<Connection> getConnectionList() {
-	    return this.connectionList;
+	public Collection<Connection> getConnections() {
+	    return this.connections.values();
 	}
 
 	public RxPPacket getNextClosePacket(Connection c) {
@@ -381,90 +114,115 @@ public class ConnectionManager {
 			  dest = c.getDestination();
 
 		int seqNum = 0,
-			ackNum = 0;
-
-		boolean syn = false,
-				ack = false,
-				psh = false,
-				fin = false;
-
-		if (c.isClient() && !c.isClientSentFIN()) {
-
-			seqNum = 1;
-
-			fin = true;
-
-			// System.out.print.println("ClientSendingFIN");
+			ackNum = 0,
+			flags = 0;
+
+		int stage = c.getCloseStage();
+
+		// The client sends the first FIN and the last ACK, the server the
+		// ACK and FIN in between
+		if (stage < Connection.CLIENT_SENT_ACK && c.isClient() == Connection.CLOSE_SENT_BY_CLIENT[stage]) {
+			flags = Connection.CLOSE_FLAGS[stage];
+			if (flags == RxPPacket.FIN_MASK) {
+				seqNum = 1;
+			} else {
+				ackNum = 1;
+			}
+			// System.out.print.println("Close " + stage);
 		}
 
-		if (!c.isClient() && (c.isClientSentFIN() && !c.isServerSentACK())) {
+		return newControlPacket(src, dest, seqNum, ackNum, flags);
+	}
 
-			// seqNum = 2;
-			ackNum = 1;
+	public void removeConnection(InetAddress address, short destination, short source) {
+		connections.remove(new ConnectionKey(address, destination, source));
+	}
 
-			ack = true;
+	private String getConnectionPacketStatus(Connection c, RxPPacket p) {
 
-			// System.out.print.println("ServerSendingACK");
-		}
+		String str = "isClient: " + c.isClient()
+				   + "\nisClientSentFIN: " + c.isClientSentFIN()
+				   + "\nisServerSentACK: " + c.isServerSentACK()
+				   + "\nisServerSentFIN: " + c.isServerSentFIN()
+				   + "\nisClientSentACK: " + c.isClientSentACK()
+				   + "\nisFIN: " + p.isFIN()
+				   + "\nisACK: " + p.isACK()
+				   + "\nisSYN: " + p.isSYN();
 
-		if (!c.isClient() && (c.isClientSentFIN() && c.isServerSentACK() && !c.isServerSentFIN())) {
+		return str;
+	}
 
-			seqNum = 1;
+	private static byte[][] buildControlTemplates() {
+		byte[][] templates = new byte[1 << 4][];
 
-			fin = true;
+		for (int flags = 0; flags < templates.length; flags++) {
+			RxPPacket template = new RxPPacket((short) 0,
+                                  (short) 0,
+                                  0,
+                                  0,
+                                  (flags & RxPPacket.FIN_MASK) != 0,
+                                  (flags & RxPPacket.SYN_MASK) != 0,
+                                  (flags & RxPPacket.ACK_MASK) != 0,
+                                  (flags & RxPPacket.PSH_MASK) != 0);
 
-			// System.out.print.println("ServerSendingFin");
+			templates[flags] = template.asDatagramPacket().getData();
 		}
 
-		if (c.isClient() && (c.isClientSentFIN() && c.isServerSentACK() && c.isServerSentFIN() && !c.isClientSentACK())) {
+		return templates;
+	}
 
-			// seqNum = 4;
-			ackNum = 1;
+	private RxPPacket newControlPacket(short src, short dest, int seqNum, int ackNum, boolean fin, boolean syn, boolean ack, boolean psh) {
 
-			ack = true;
+		int flags = (fin ? RxPPacket.FIN_MASK : 0)
+				  | (syn ? RxPPacket.SYN_MASK : 0)
+				  | (ack ? RxPPacket.ACK_MASK : 0)
+				  | (psh ? RxPPacket.PSH_MASK : 0);
 
-			// System.out.print.println("ClientSendingACK");
-		}
+		return newControlPacket(src, dest, seqNum, ackNum, flags);
+	}
+
+	private RxPPacket newControlPacket(short src, short dest, int seqNum, int ackNum, int flags) {
 
-		RxPPacket newPacket = new RxPPacket(src,
-                                  dest,
-                                  seqNum,
-                                  ackNum,
-                                  fin,
-                                  syn,
-                                  ack,
-                                  psh);
+		byte[] template = CONTROL_TEMPLATES[flags];
+		RxPPacket newPacket = new RxPPacket(template, template.length);
 
+		newPacket.setSrcPort(src);
+		newPacket.setDestPort(dest);
+		newPacket.setSeqNum(seqNum);
+		newPacket.setACKNum(ackNum);
 		newPacket.setChecksum(newPacket.calculateChecksum());
 
 		return newPacket;
 	}
 
-	public void removeConnection(short destination, short source) {
+	// Identifies a connection by the remote host's address and the two
+	// ports in the RxP header. Callers look a connection up from either
+	// direction, so the ports are stored lowest first.
+	private static final class ConnectionKey {
 
-		for (int i = 0; i < connectionList.size(); i++) {
-			Connection c = connectionList.get(i);
+		private final InetAddress address;
+		private final short lowPort;
+		private final short highPort;
 
-			if ((c.getDestination() == destination && c.getSource() == source) || (c.getDestination() == source && c.getSource() == destination)) {
-				connectionList.remove(i);
-				break;
-			}
+		ConnectionKey(InetAddress address, short port, short otherPort) {
+			this.address = address;
+			this.lowPort = (short) Math.min(port, otherPort);
+			this.highPort = (short) Math.max(port, otherPort);
 		}
-	}
-
-	private String getConnectionPacketStatus(RxPPacket p) {
-
-		Connection c = this.getConnection(p);
 
-		String str = "isClient: " + c.isClient()
-				   + "\nisClientSentFIN: " + c.isClientSentFIN()
-				   + "\nisServerSentACK: " + c.isServerSentACK()
-				   + "\nisServerSentFIN: " + c.isServerSentFIN()
-				   + "\nisClientSentACK: " + c.isClientSentACK()
-				   + "\nisFIN: " + p.isFIN()
-				   + "\nisACK: " + p.isACK()
-				   + "\nisSYN: " + p.isSYN();
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ConnectionKey)) {
+				return false;
+			}
+			ConnectionKey other = (ConnectionKey) o;
+			return lowPort == other.lowPort && highPort == other.highPort
+					&& Objects.equals(address, other.address);
+		}
 
-		return str;
+		@Override
+		public int hashCode() {
+			return (Objects.hashCode(address) * 31 + lowPort) * 31 + highPort;
+		}
 	}
 }
@@ -0,0 +1,91 @@
+// CUBIC (RFC 8312): after a loss the window grows along a cubic curve that
+// flattens out around the size it was at before the loss, so it recovers
+// quickly on long fat paths without overshooting. Falls back to Reno-like
+// growth when that would be faster.
+public class CubicCongestionController implements CongestionController {
+
+  public static final int INITIAL_WINDOW = 4;
+  public static final int MIN_SSTHRESH = 2;
+
+  private static final double C = 0.4;
+  private static final double BETA = 0.7;
+
+  private double cwnd;
+  private double ssthresh;
+
+  private double windowMax;        // Window just before the last reduction
+  private double renoWindow;       // What Reno would have by now
+  private double timeToWindowMax;  // K, in seconds
+  private long epochStartNanos;    // Start of the current growth period, 0 if none
+
+  public CubicCongestionController() {
+    this.cwnd = INITIAL_WINDOW;
+    this.ssthresh = Integer.MAX_VALUE;
+    this.windowMax = 0;
+    this.epochStartNanos = 0;
+  }
+
+  public synchronized int getWindow() {
+    return Math.max(1, (int) cwnd);
+  }
+
+  public synchronized void onAck(int packetsAcked, double smoothedRttMillis) {
+    for (int i = 0; i < packetsAcked; i++) {
+      if (cwnd < ssthresh) {
+        cwnd += 1;
+        continue;
+      }
+
+      long now = System.nanoTime();
+      if (epochStartNanos == 0) {
+        epochStartNanos = now;
+        if (cwnd < windowMax) {
+          timeToWindowMax = Math.cbrt((windowMax - cwnd) / C);
+        } else {
+          timeToWindowMax = 0;
+          windowMax = cwnd;
+        }
+        renoWindow = cwnd;
+      }
+
+      // Aim for where the curve will be one round trip from now
+      double t = (now - epochStartNanos) / 1e9 + smoothedRttMillis / 1000;
+      double target = C * Math.pow(t - timeToWindowMax, 3) + windowMax;
+
+      if (target > cwnd) {
+        cwnd += (target - cwnd) / cwnd;
+      } else {
+        cwnd += 0.01 / cwnd;
+      }
+
+      // TCP-friendly region
+      renoWindow += 3 * (1 - BETA) / (1 + BETA) / cwnd;
+      if (renoWindow > cwnd) {
+        cwnd = renoWindow;
+      }
+    }
+  }
+
+  public synchronized void onLoss() {
+    reduce();
+    cwnd = ssthresh;
+  }
+
+  public synchronized void onTimeout() {
+    reduce();
+    cwnd = 1;
+  }
+
+  private void reduce() {
+    epochStartNanos = 0;
+
+    // Fast convergence: if we lost before reaching the old maximum, another
+    // flow is probably competing, so give some of it up.
+    if (cwnd < windowMax) {
+      windowMax = cwnd * (1 + BETA) / 2;
+    } else {
+      windowMax = cwnd;
+    }
+    ssthresh = Math.max(cwnd * BETA, MIN_SSTHRESH);
+  }
+}
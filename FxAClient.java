@@ -2,6 +2,7 @@
 import java.util.concurrent.*;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -13,8 +14,8 @@ public class FxAClient {
   private CLILoop cliLoop;
   private ReceiveLoop receiveLoop;
 
-  private boolean isConnected;
-  public static boolean isProcessingAction;
+  // Shared between the CLILoop and ReceiveLoop threads
+  private volatile boolean isConnected;
 
   public FxAClient(int port, int netEmuPort, InetAddress netEmuInetAddress) throws IOException {
 
@@ -25,7 +26,6 @@ public class FxAClient {
     this.cliLoop = new CLILoop(socket, this, netEmuPort, netEmuInetAddress);
     this.receiveLoop = new ReceiveLoop(socket, this);
     this.isConnected = false;
-    isProcessingAction = false;
   }
 
   private void mainLoop() throws IOException, InterruptedException {
@@ -94,36 +94,20 @@ class ReceiveLoop implements Callable<Object> {
     if (!this.client.isConnected()) {
       System.out.println("Receiving data without being connected. Please Connect.");
 
-      MsgCoder coder = new FileMsgTextCoder();
-      FileService service = new FileService();
+      // Exit if the server ends the connection
+      this.socket.setPeerCloseListener(() -> System.exit(0));
 
-      boolean connectedOneTme = false;
       while (true) {
-        if (this.socket.isConnected) {
-          connectedOneTme = true;
+        // Blocks until the server sends something while we are idle, so
+        // an idle client uses no CPU
+        try {
+          this.socket.receiveInBackground();
+        } catch (SocketException se) {
+          // The socket was closed
+          return;
+        } catch (Exception ioe) {
+          System.err.println(ioe.getMessage());
         }
-
-        //System.out.println("this.socket.isConnected: " +this.socket.isConnected);
-      	// Make receive break when socket.isClientSending
-      	// must make sure receive knows that it is a client socket
-
-      	//System.out.println("isClientSending: " + this.socket.isClientSending);
-        if (!this.socket.isClientSending) {
-
-          // Exit if the socket is disconnected
-          if (!this.socket.isConnected && connectedOneTme) {
-            System.exit(0);
-          }
-
-      		try {
-            if (!this.client.isProcessingAction) {
-  		    	     this.socket.receiveInBackground();
-            }
-
-          } catch (Exception ioe) {
-            System.err.println(ioe.getMessage());
-          }
-	       }
       }
     }
   }
@@ -153,7 +137,7 @@ class CLILoop implements Callable<Object> {
     return null;
   }
 
-  private void connect() {
+  private void connect() throws IOException {
 	  socket.connect(netEmuInetAddress, netEmuPort);
     this.client.setConnected(true);
   }
@@ -174,7 +158,6 @@ class CLILoop implements Callable<Object> {
 
   private void getFile(String filename) throws IOException {
     synchronized(socket) {
-      this.client.isProcessingAction = true;
       // Send the request to the server
       FileMsg request = new FileMsg(true, filename, null);
       byte[] encodedMsg = coder.toWire(request);
@@ -205,7 +188,6 @@ class CLILoop implements Callable<Object> {
       finally {
         if (fs != null) {
           fs.close();
-          this.client.isProcessingAction = false;
         }
       }
       System.out.println("File was downloaded successfully.\nSaved as: " + filename);
@@ -213,8 +195,7 @@ class CLILoop implements Callable<Object> {
   }
 
   private void postFile(String filename) throws IOException {
-    synchronized(this) {
-      this.client.isProcessingAction = true;
+    synchronized(socket) {
       FileInputStream newFile = null;
       try {
         newFile = new FileInputStream(filename);
@@ -257,9 +238,6 @@ class CLILoop implements Callable<Object> {
           System.err.println("The file could not be saved.");
           System.err.println(e.getMessage());
         }
-        finally {
-          this.client.isProcessingAction = true;
-        }
       }
     }
   }
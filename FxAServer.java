@@ -13,19 +13,20 @@ import java.nio.file.Path;
 public class FxAServer {
 
   private ExecutorService service;
-  private RxPSocket socket;
+  private RxPServerSocket serverSocket;
 
   public FxAServer(int port, int netEmuPort, InetAddress netEmuInetAddress) throws IOException {
-    // Creates Client's RxPSocket bound to Client's localhost and even port
+    // Creates Server's RxPServerSocket bound to localhost and odd port
     InetAddress localhost = InetAddress.getByName("127.0.0.1");
-    socket = new RxPSocket(port, localhost);
+    serverSocket = new RxPServerSocket(port, localhost);
   }
 
   public void mainLoop() throws InterruptedException {
-    service = Executors.newFixedThreadPool(3);
+    // One thread each for accepting and commands, plus one per client
+    service = Executors.newCachedThreadPool();
 
     ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
-    tasks.add(new ServerLoop(socket));
+    tasks.add(new AcceptLoop(serverSocket, service));
     tasks.add(new CommandLoop(this));
 
     service.invokeAll(tasks);
@@ -36,7 +37,7 @@ public class FxAServer {
 
   public void setWindowSize(int windowSize) {
     System.out.println("SETTING WINDOW");
-    socket.setWindowSize(windowSize);
+    serverSocket.setWindowSize(windowSize);
   }
 
   public void terminate() {
@@ -103,14 +104,41 @@ class CommandLoop implements Callable<Object> {
   }
 }
 
+class AcceptLoop implements Callable<Object> {
+
+  private RxPServerSocket serverSocket;
+  private ExecutorService service;
+
+  public AcceptLoop(RxPServerSocket serverSocket, ExecutorService service) {
+    this.serverSocket = serverSocket;
+    this.service = service;
+  }
+
+  @Override
+  public Object call() throws Exception {
+    System.out.println("Listening");
+    while (true) {
+      RxPSocket socket = serverSocket.accept();
+      System.out.println("Client connected");
+      service.submit(new ServerLoop(socket, true));
+    }
+  }
+}
+
 class ServerLoop implements Callable<Object> {
 
   private RxPSocket socket;
   private boolean connected;
 
   public ServerLoop(RxPSocket socket) {
+    this(socket, false);
+  }
+
+  // connected is true for a socket that has already done its handshake,
+  // e.g. one from RxPServerSocket.accept()
+  public ServerLoop(RxPSocket socket, boolean connected) {
     this.socket = socket;
-    this.connected = false;
+    this.connected = connected;
   }
 
   @Override
@@ -119,13 +147,13 @@ class ServerLoop implements Callable<Object> {
     return null;
   }
 
+  // Returns the next request, or null once the connection is over
   private byte[] receive() {
-    while(true) {
-      try {
-        return socket.receive();
-      } catch(Exception e) {
-        continue;
-      }
+    try {
+      return socket.receive();
+    } catch(IOException e) {
+      System.err.println(e.getMessage());
+      return null;
     }
   }
 
@@ -222,7 +250,12 @@ class ServerLoop implements Callable<Object> {
     while (true) {
       try {
         byte[] inBuffer = null;
-        while ((inBuffer = receive()).length == 0);
+        while ((inBuffer = receive()) != null && inBuffer.length == 0);
+        if (inBuffer == null) {
+          socket.close();
+          System.out.println("Client disconnected");
+          return;
+        }
 
         FileMsg msg = coder.fromWire(inBuffer);
         msg = service.handleRequest(msg);
@@ -0,0 +1,30 @@
+// How much of each packet the checksum covers. Both ends of a connection
+// announce the mode they want in the handshake and use the stronger one.
+// Handshake and close packets always use CRC32C.
+public enum IntegrityMode {
+
+  // CRC32C over the header, SACK blocks and payload
+  CRC32C,
+
+  // CRC32C over the header and SACK blocks only. The payload is left to
+  // the UDP checksum.
+  HEADER,
+
+  // No checksum of our own; rely on the UDP checksum alone
+  NONE;
+
+  public int getCode() {
+    return ordinal();
+  }
+
+  // The mode with the given code, or null if there is none.
+  public static IntegrityMode fromCode(int code) {
+    IntegrityMode[] modes = values();
+    return code >= 0 && code < modes.length ? modes[code] : null;
+  }
+
+  // Whichever of the two checks more.
+  public static IntegrityMode stronger(IntegrityMode a, IntegrityMode b) {
+    return a.ordinal() <= b.ordinal() ? a : b;
+  }
+}
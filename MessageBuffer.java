@@ -0,0 +1,53 @@
+import java.util.Arrays;
+
+// Reassembles an incoming message. Each packet's payload is copied once,
+// straight from the packet into a growing byte array, and the array is
+// handed back as is when it is exactly full.
+public class MessageBuffer {
+
+  public static final int INITIAL_CAPACITY = 4096;
+
+  private byte[] bytes;
+  private int length;
+
+  public MessageBuffer() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public MessageBuffer(int initialCapacity) {
+    this.bytes = new byte[Math.max(1, initialCapacity)];
+    this.length = 0;
+  }
+
+  public void append(RxPPacket packet) {
+    append(packet, 0);
+  }
+
+  // Appends the packet's payload from position bytes in.
+  public void append(RxPPacket packet, int position) {
+    int count = packet.getPayloadLength() - position;
+    ensureCapacity(length + count);
+    packet.copyPacketData(position, bytes, length, count);
+    length += count;
+  }
+
+  // Doubles the array, so a message of n bytes is moved O(log n) times
+  // in total rather than once per packet.
+  private void ensureCapacity(int needed) {
+    if (needed > bytes.length) {
+      int capacity = bytes.length;
+      while (capacity < needed) {
+        capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE - 8 : capacity * 2;
+      }
+      bytes = Arrays.copyOf(bytes, capacity);
+    }
+  }
+
+  public int size() {
+    return length;
+  }
+
+  public byte[] toByteArray() {
+    return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+  }
+}
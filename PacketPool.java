@@ -0,0 +1,46 @@
+import java.net.DatagramPacket;
+import java.util.ArrayDeque;
+
+// Recycles RxPPackets, each with its own buffer big enough for any
+// datagram, so packets that are built or received over and over do not
+// each cost a new buffer.
+// A packet must not be used again once it has been released.
+public class PacketPool {
+
+  private int bufferSize;
+  private int maxPooled;
+  private ArrayDeque<RxPPacket> free;
+
+  public PacketPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+    this.free = new ArrayDeque<>();
+  }
+
+  // Returns an empty header-only packet, reused if one is free.
+  public synchronized RxPPacket acquire() {
+    RxPPacket packet = free.poll();
+    if (packet == null) {
+      return new RxPPacket(bufferSize);
+    }
+    return packet.reset();
+  }
+
+  // Returns a packet holding the datagram just received, which takes over
+  // the datagram's buffer rather than copying it. The datagram is left
+  // with the packet's old buffer to receive the next one into.
+  public RxPPacket take(DatagramPacket datagram) {
+    RxPPacket packet = acquire();
+    if (!packet.takeBuffer(datagram)) {
+      packet.copyFrom(new RxPPacket().wrap(datagram));
+    }
+    return packet;
+  }
+
+  // Takes a packet back. Beyond maxPooled they are left to the GC.
+  public synchronized void release(RxPPacket packet) {
+    if (packet != null && free.size() < maxPooled) {
+      free.push(packet);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+// Classic Reno: slow start up to ssthresh, then one packet per round trip,
+// halving the window on loss and restarting from one on a timeout.
+public class RenoCongestionController implements CongestionController {
+
+  public static final int INITIAL_WINDOW = 4;
+  public static final int MIN_SSTHRESH = 2;
+
+  private double cwnd;
+  private double ssthresh;
+
+  public RenoCongestionController() {
+    this.cwnd = INITIAL_WINDOW;
+    this.ssthresh = Integer.MAX_VALUE;
+  }
+
+  public synchronized int getWindow() {
+    return Math.max(1, (int) cwnd);
+  }
+
+  public synchronized void onAck(int packetsAcked, double smoothedRttMillis) {
+    for (int i = 0; i < packetsAcked; i++) {
+      if (cwnd < ssthresh) {
+        cwnd += 1;
+      } else {
+        cwnd += 1 / cwnd;
+      }
+    }
+  }
+
+  public synchronized void onLoss() {
+    ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+    cwnd = ssthresh;
+  }
+
+  public synchronized void onTimeout() {
+    ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+    cwnd = 1;
+  }
+}
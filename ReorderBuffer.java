@@ -0,0 +1,88 @@
+import java.net.DatagramPacket;
+
+// Holds data packets that arrived ahead of the next expected sequence number
+// so they can be delivered once the gap in front of them is filled.
+public class ReorderBuffer {
+
+  public static final int DEFAULT_CAPACITY = 64;
+
+  private RxPPacket[] slots;
+  private int count;
+  private PacketPool pool;
+
+  // Held packets are taken from pool. Whoever polls a packet owns it and
+  // should release it back to the pool when done.
+  public ReorderBuffer(int capacity, PacketPool pool) {
+    this.slots = new RxPPacket[capacity];
+    this.count = 0;
+    this.pool = pool;
+  }
+
+  // Holds a packet that is ahead of expectedSeqNum. packet is a view over
+  // datagram, whose buffer is kept instead of a copy (see PacketPool.take).
+  // Returns false, leaving datagram alone, if the packet is not ahead, too
+  // far ahead to fit, or already being held.
+  public boolean offer(int expectedSeqNum, RxPPacket packet, DatagramPacket datagram) {
+    int seqNum = packet.getSeqNum();
+    if (seqNum <= expectedSeqNum || seqNum - expectedSeqNum > slots.length) {
+      return false;
+    }
+
+    int slot = Math.floorMod(seqNum, slots.length);
+    if (slots[slot] != null) {
+      return false;
+    }
+
+    slots[slot] = pool.take(datagram);
+    count++;
+    return true;
+  }
+
+  // Removes and returns the packet with the given sequence number, or null
+  // if it has not arrived yet.
+  public RxPPacket poll(int seqNum) {
+    int slot = Math.floorMod(seqNum, slots.length);
+    RxPPacket packet = slots[slot];
+    if (packet == null || packet.getSeqNum() != seqNum) {
+      return null;
+    }
+
+    slots[slot] = null;
+    count--;
+    return packet;
+  }
+
+  // Fills starts and ends with the contiguous runs of held packets after
+  // expectedSeqNum, lowest first. Returns the number of runs written.
+  public int getHeldRanges(int expectedSeqNum, int[] starts, int[] ends) {
+    int ranges = 0;
+    int seqNum = expectedSeqNum + 1;
+    int lastSeqNum = expectedSeqNum + slots.length;
+
+    while (count > 0 && seqNum <= lastSeqNum && ranges < starts.length) {
+      if (isHolding(seqNum)) {
+        starts[ranges] = seqNum;
+        while (seqNum + 1 <= lastSeqNum && isHolding(seqNum + 1)) {
+          seqNum++;
+        }
+        ends[ranges] = seqNum;
+        ranges++;
+      }
+      seqNum++;
+    }
+    return ranges;
+  }
+
+  private boolean isHolding(int seqNum) {
+    RxPPacket packet = slots[Math.floorMod(seqNum, slots.length)];
+    return packet != null && packet.getSeqNum() == seqNum;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getCapacity() {
+    return slots.length;
+  }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// One timer thread shared by every RxPSocket in the process. Re-arming a
+// retransmission timer is a cancel plus a schedule on this executor rather
+// than a new java.util.Timer (and a new thread) per ACK.
+public class RetransmitScheduler {
+
+  private static RetransmitScheduler instance;
+
+  private ScheduledThreadPoolExecutor executor;
+
+  private RetransmitScheduler() {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RxP-Retransmit");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    // Cancelled timers are dropped from the queue straight away, so
+    // constantly re-arming does not let dead entries pile up.
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  public static synchronized RetransmitScheduler getInstance() {
+    if (instance == null) {
+      instance = new RetransmitScheduler();
+    }
+    return instance;
+  }
+
+  // Runs task once after delayMillis. Cancel the returned future to disarm.
+  public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+    return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,77 @@
+// Smoothed round trip time and retransmission timeout for one connection,
+// following Jacobson/Karels (RFC 6298). Callers apply Karn's rule by only
+// passing samples from packets that were never retransmitted.
+public class RttEstimator {
+
+  // Used until the first sample arrives. Matches the old fixed timeout.
+  public static final long INITIAL_TIMEOUT_MILLIS = 300;
+  public static final long MIN_TIMEOUT_MILLIS = 20;
+  public static final long DEFAULT_MAX_TIMEOUT_MILLIS = 4000;
+
+  private static final double ALPHA = 1.0 / 8;
+  private static final double BETA = 1.0 / 4;
+  private static final double CLOCK_GRANULARITY_MILLIS = 1;
+
+  private double smoothedRtt;
+  private double rttVariance;
+  private boolean hasSample;
+
+  private long timeoutMillis;
+  private long maxTimeoutMillis;
+  private int backoffs;
+
+  public RttEstimator() {
+    this.hasSample = false;
+    this.timeoutMillis = INITIAL_TIMEOUT_MILLIS;
+    this.maxTimeoutMillis = DEFAULT_MAX_TIMEOUT_MILLIS;
+    this.backoffs = 0;
+  }
+
+  // Folds in a round trip measured from a packet that was sent exactly once.
+  public synchronized void addSample(long rttNanos) {
+    double rttMillis = rttNanos / 1000000.0;
+
+    if (!hasSample) {
+      smoothedRtt = rttMillis;
+      rttVariance = rttMillis / 2;
+      hasSample = true;
+    } else {
+      rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rttMillis);
+      smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttMillis;
+    }
+
+    long timeout = (long) Math.ceil(smoothedRtt + Math.max(CLOCK_GRANULARITY_MILLIS, 4 * rttVariance));
+    timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, Math.min(timeout, maxTimeoutMillis));
+
+    // A fresh sample means the path is responding again
+    backoffs = 0;
+  }
+
+  // Doubles the timeout after it expires, up to the ceiling.
+  public synchronized void backOff() {
+    if (getRetransmitTimeout() < maxTimeoutMillis) {
+      backoffs++;
+    }
+  }
+
+  public synchronized long getRetransmitTimeout() {
+    long timeout = timeoutMillis;
+    for (int i = 0; i < backoffs && timeout < maxTimeoutMillis; i++) {
+      timeout *= 2;
+    }
+    return Math.min(timeout, maxTimeoutMillis);
+  }
+
+  public synchronized void setMaxTimeout(long maxTimeoutMillis) {
+    this.maxTimeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, maxTimeoutMillis);
+    this.timeoutMillis = Math.min(timeoutMillis, this.maxTimeoutMillis);
+  }
+
+  public synchronized long getMaxTimeout() {
+    return maxTimeoutMillis;
+  }
+
+  public synchronized double getSmoothedRtt() {
+    return smoothedRtt;
+  }
+}
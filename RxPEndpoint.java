@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// An RxPSocket's channel as seen through the RxPEngine. The engine thread
+// fills a bounded queue of received datagrams; receive() and send() give
+// the socket the same blocking, timeout-driven calls DatagramSocket did.
+//
+// A listening endpoint (see listen()) instead splits what it receives by
+// remote address and port, handing each peer its own endpoint over the
+// same channel, so one bound port can carry many connections.
+public class RxPEndpoint {
+
+  // Datagrams held for a socket that is not keeping up. Any more are
+  // dropped, as a full socket receive buffer would.
+  public static final int RECEIVE_QUEUE_LENGTH = 2 * ReorderBuffer.DEFAULT_CAPACITY;
+
+  private DatagramChannel channel;
+  private RxPEngine engine;
+
+  // Set for an endpoint split off a listening one: that endpoint, and the
+  // one peer this endpoint talks to
+  private RxPEndpoint parent;
+  private InetSocketAddress remote;
+  private boolean accepted;
+  private long admittedNanos; // When the listener took its SYN
+
+  private volatile int soTimeout;
+  private volatile boolean closed;
+
+  // Set for a listening endpoint: its peers, how many of them have not yet
+  // been accepted, the most that may wait, and who to tell about new ones
+  private ConcurrentHashMap<SocketAddress, RxPEndpoint> peers;
+  private AtomicInteger pendingPeers;
+  private int backlog;
+  private Consumer<RxPEndpoint> newPeerHandler;
+  private byte[] synBytes; // A new peer's SYN, copied out to check it
+  private RxPPacket synView;
+
+  // Slots are made as needed up to RECEIVE_QUEUE_LENGTH, then recycled
+  private ArrayBlockingQueue<DatagramPacket> received;
+  private ArrayBlockingQueue<DatagramPacket> free;
+  private int slots;
+
+  // Sees each datagram on the engine thread before it is queued, and keeps
+  // the ones it returns true for. Its slot is only for a full queue.
+  private volatile Predicate<DatagramPacket> receiveFilter;
+  private DatagramPacket filterSlot;
+
+  // Threads in awaitDatagram() sleep on arrival. Arrivals only touch its
+  // lock while someone is waiting.
+  private final Object arrival = new Object();
+  private final AtomicInteger arrivalWaiters = new AtomicInteger();
+
+  private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(RxPSocket.MAX_PACKET_SIZE);
+  private InetSocketAddress lastTarget;
+
+  RxPEndpoint(DatagramChannel channel, RxPEngine engine) {
+    this.channel = channel;
+    this.engine = engine;
+    this.received = new ArrayBlockingQueue<>(RECEIVE_QUEUE_LENGTH);
+    this.free = new ArrayBlockingQueue<>(RECEIVE_QUEUE_LENGTH);
+    this.slots = 0;
+  }
+
+  private RxPEndpoint(RxPEndpoint parent, InetSocketAddress remote) {
+    this(parent.channel, parent.engine);
+    this.parent = parent;
+    this.remote = remote;
+    this.accepted = false;
+    this.admittedNanos = System.nanoTime();
+  }
+
+  public DatagramChannel getChannel() {
+    return channel;
+  }
+
+  // True for a peer of a listening endpoint, made when its SYN arrived.
+  public boolean isPeer() {
+    return parent != null;
+  }
+
+  // When a peer's SYN arrived, in System.nanoTime() terms.
+  public long getAdmittedNanos() {
+    return admittedNanos;
+  }
+
+  // From now on, datagrams from each remote address and port go to that
+  // peer's own endpoint. A handshake SYN from an unknown peer creates one
+  // and passes it to newPeerHandler, on the engine thread, as long as
+  // fewer than backlog peers are waiting to be accepted.
+  public void listen(int backlog, Consumer<RxPEndpoint> newPeerHandler) {
+    this.backlog = backlog;
+    this.newPeerHandler = newPeerHandler;
+    this.pendingPeers = new AtomicInteger();
+    this.peers = new ConcurrentHashMap<>();
+  }
+
+  // Forgets a closed peer, so its address can connect again, and closes
+  // the channel if it was the last thing using it.
+  private void removePeer(RxPEndpoint peer) {
+    boolean idle;
+    synchronized (this) {
+      idle = peers.remove(peer.remote, peer) && closed && peers.isEmpty();
+    }
+    if (idle) {
+      engine.close(channel);
+    }
+  }
+
+  // Marks a peer as accepted, making room in its listener's backlog.
+  public synchronized void markAccepted() {
+    if (parent != null && !accepted) {
+      accepted = true;
+      parent.pendingPeers.decrementAndGet();
+    }
+  }
+
+  public int getLocalPort() {
+    return channel.socket().getLocalPort();
+  }
+
+  // The peer's port and address, or -1 and null if not connected.
+  public int getPort() {
+    return remote != null ? remote.getPort() : channel.socket().getPort();
+  }
+
+  public InetAddress getInetAddress() {
+    return remote != null ? remote.getAddress() : channel.socket().getInetAddress();
+  }
+
+  // How long receive() waits, in milliseconds. Zero waits forever.
+  public void setSoTimeout(int timeout) throws SocketException {
+    if (isClosed()) {
+      throw new SocketException("Socket is closed");
+    }
+    this.soTimeout = timeout;
+  }
+
+  public boolean isClosed() {
+    return closed || !channel.isOpen();
+  }
+
+  // Closes the channel, returning once its port can be bound again. The
+  // channel of a listening endpoint is shared with its peers, so closing
+  // the listener only stops it admitting new ones, and closing a peer only
+  // stops its datagrams; the channel closes once all of them are closed.
+  public void close() {
+    if (parent != null) {
+      boolean wasClosed;
+      synchronized (this) {
+        wasClosed = closed;
+        closed = true;
+        markAccepted();
+      }
+      if (!wasClosed) {
+        parent.removePeer(this);
+      }
+    } else if (peers != null) {
+      boolean idle;
+      synchronized (this) {
+        idle = !closed && peers.isEmpty();
+        closed = true;
+      }
+      if (idle) {
+        engine.close(channel);
+      }
+    } else {
+      closed = true;
+      engine.close(channel);
+    }
+
+    synchronized (arrival) {
+      arrival.notifyAll();
+    }
+  }
+
+  // Restricts the channel to one peer. Unlike DatagramChannel, and like
+  // DatagramSocket, this may be called again to switch peers. A peer of a
+  // listening endpoint is fixed to its remote address.
+  public void connect(InetAddress address, int port) {
+    InetSocketAddress target = new InetSocketAddress(address, port);
+    if (remote != null) {
+      if (!remote.equals(target)) {
+        throw new IllegalArgumentException("Endpoint is fixed to " + remote);
+      }
+      return;
+    }
+
+    try {
+      if (channel.isConnected()) {
+        if (target.equals(channel.getRemoteAddress())) {
+          return;
+        }
+        channel.disconnect();
+      }
+      channel.connect(target);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Called on the engine thread when the channel is readable. Returns
+  // false once the channel is closed.
+  boolean readAvailable(ByteBuffer buffer) {
+    try {
+      while (true) {
+        buffer.clear();
+        SocketAddress source = channel.receive(buffer);
+        if (source == null) {
+          return true;
+        }
+        buffer.flip();
+
+        RxPEndpoint target = this;
+        if (peers != null) {
+          target = peers.get(source);
+          if (target == null) {
+            target = admit((InetSocketAddress) source, buffer);
+          }
+        }
+        if (target != null && !(target == this && closed)) {
+          try {
+            target.enqueue(buffer, source);
+          } catch (RuntimeException e) {
+            if (target == this) {
+              throw e;
+            }
+            // Only that peer's socket failed; the others on this port carry on
+            System.err.println("RxP-Engine: closing peer " + source + " after " + e);
+            target.close();
+          }
+        }
+      }
+    } catch (IOException e) {
+      return channel.isOpen();
+    }
+  }
+
+  // Makes an endpoint for a new peer if it is opening a handshake and the
+  // backlog has room. Anything else from an unknown peer is dropped.
+  private RxPEndpoint admit(InetSocketAddress source, ByteBuffer datagram) {
+    if (datagram.remaining() < RxPPacket.CONTROL_PACKET_LENGTH) {
+      return null;
+    }
+    byte flags = datagram.get(RxPPacket.FLAGS_BYTE_OFFSET);
+    boolean syn = (flags & RxPPacket.SYN_MASK) != 0;
+    boolean ack = (flags & RxPPacket.ACK_MASK) != 0;
+    if (!syn || ack || pendingPeers.get() >= backlog) {
+      return null;
+    }
+    // Nor may a corrupt or forged one take a handshake thread. A real SYN
+    // is always checksummed in full, so one that opts out is neither.
+    if (synBytes == null) {
+      synBytes = new byte[RxPSocket.MAX_PACKET_SIZE];
+      synView = new RxPPacket();
+    }
+    int length = datagram.remaining();
+    datagram.duplicate().get(synBytes, 0, length);
+    synView.wrap(synBytes, length);
+    if (!synView.isChecksumValid() || synView.getIntegrity() != IntegrityMode.CRC32C) {
+      return null;
+    }
+
+    RxPEndpoint peer = new RxPEndpoint(this, source);
+    synchronized (this) {
+      // A closed listener admits no one
+      if (closed) {
+        return null;
+      }
+      peers.put(source, peer);
+    }
+    pendingPeers.incrementAndGet();
+    newPeerHandler.accept(peer);
+    return peer;
+  }
+
+  // Handles datagrams as they arrive, on the engine thread, rather than
+  // queueing them for receive(). filter returns true for the ones it has
+  // dealt with; the rest are queued as usual. It must not block.
+  public void setReceiveFilter(Predicate<DatagramPacket> filter) {
+    this.receiveFilter = filter;
+  }
+
+  // Copies the datagram in buffer into a free slot and queues it.
+  private void enqueue(ByteBuffer buffer, SocketAddress source) {
+    Predicate<DatagramPacket> filter = receiveFilter;
+    DatagramPacket slot = free.poll();
+    if (slot == null && slots < RECEIVE_QUEUE_LENGTH) {
+      slot = new DatagramPacket(new byte[RxPSocket.MAX_PACKET_SIZE], RxPSocket.MAX_PACKET_SIZE);
+      slots++;
+    }
+    boolean queueFull = slot == null;
+    if (queueFull) {
+      if (filter == null) {
+        // Queue full, drop it
+        return;
+      }
+      // The filter may still want it
+      if (filterSlot == null) {
+        filterSlot = new DatagramPacket(new byte[RxPSocket.MAX_PACKET_SIZE], RxPSocket.MAX_PACKET_SIZE);
+      }
+      slot = filterSlot;
+    }
+
+    int length = buffer.remaining();
+    buffer.get(slot.getData(), 0, length);
+    slot.setLength(length);
+    slot.setSocketAddress(source);
+
+    if (filter != null && filter.test(slot)) {
+      if (!queueFull) {
+        free.offer(slot);
+      }
+      return;
+    }
+    if (queueFull) {
+      return;
+    }
+    received.offer(slot);
+
+    if (arrivalWaiters.get() > 0) {
+      synchronized (arrival) {
+        arrival.notifyAll();
+      }
+    }
+  }
+
+  // Blocks until a datagram is waiting or the endpoint is closed, without
+  // taking the datagram.
+  public void awaitDatagram() throws InterruptedException {
+    arrivalWaiters.incrementAndGet();
+    try {
+      synchronized (arrival) {
+        while (received.isEmpty() && !isClosed()) {
+          arrival.wait();
+        }
+      }
+    } finally {
+      arrivalWaiters.decrementAndGet();
+    }
+  }
+
+  // Takes a waiting datagram into packet, if there is one, without
+  // blocking.
+  public boolean poll(DatagramPacket packet) {
+    DatagramPacket slot = received.poll();
+    if (slot == null) {
+      return false;
+    }
+    handOut(slot, packet);
+    return true;
+  }
+
+  // Waits up to the SO_TIMEOUT for a datagram and puts it in packet, like
+  // DatagramSocket.receive().
+  public void receive(DatagramPacket packet) throws IOException {
+    DatagramPacket slot = received.poll();
+    if (slot == null) {
+      if (isClosed()) {
+        throw new SocketException("Socket is closed");
+      }
+
+      int timeout = soTimeout;
+      try {
+        slot = timeout == 0 ? received.take() : received.poll(timeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (slot == null) {
+        throw new SocketTimeoutException("Receive timed out");
+      }
+    }
+    handOut(slot, packet);
+  }
+
+  // Gives packet the slot's datagram. Where their buffers are the same
+  // size, as they are for RxPSocket's, the two swap buffers rather than
+  // the datagram being copied.
+  private void handOut(DatagramPacket slot, DatagramPacket packet) {
+    byte[] data = slot.getData();
+    int length = slot.getLength();
+    if (packet.getOffset() == 0 && packet.getData().length == data.length) {
+      slot.setData(packet.getData());
+      packet.setData(data, 0, length);
+    } else {
+      length = Math.min(length, packet.getData().length - packet.getOffset());
+      System.arraycopy(data, 0, packet.getData(), packet.getOffset(), length);
+      packet.setLength(length);
+    }
+    packet.setAddress(slot.getAddress());
+    packet.setPort(slot.getPort());
+    free.offer(slot);
+  }
+
+  // Sends without blocking. If the socket's send buffer is full the
+  // datagram is dropped, and retransmission covers it like any loss. A
+  // connected channel, or a peer of a listening endpoint, always sends to
+  // its peer, as a connected DatagramSocket does.
+  public synchronized void send(DatagramPacket packet) throws IOException {
+    sendBuffer.clear();
+    sendBuffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+    sendBuffer.flip();
+
+    if (remote != null) {
+      channel.send(sendBuffer, remote);
+      return;
+    }
+    if (channel.isConnected()) {
+      channel.write(sendBuffer);
+      return;
+    }
+
+    if (lastTarget == null || lastTarget.getPort() != packet.getPort()
+        || !lastTarget.getAddress().equals(packet.getAddress())) {
+      lastTarget = new InetSocketAddress(packet.getAddress(), packet.getPort());
+    }
+    channel.send(sendBuffer, lastTarget);
+  }
+}
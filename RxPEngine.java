@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+// One event loop thread shared by every RxPSocket in the process. Each
+// socket's non-blocking DatagramChannel is registered with a single
+// Selector, and the loop drains whichever channels are readable into
+// their endpoints' queues. Sockets then wait on their own queue instead
+// of each blocking a thread inside DatagramSocket.receive().
+public class RxPEngine implements Runnable {
+
+  private static RxPEngine instance;
+
+  private Selector selector;
+  private Thread thread;
+  private ConcurrentLinkedQueue<RxPEndpoint> registrations;
+
+  // Channels to close on the engine thread
+  private ConcurrentLinkedQueue<Closing> closings;
+
+  // Datagrams are read here and copied once, into the endpoint's slot. From
+  // there the slot's buffer itself is passed on to whoever keeps the data.
+  private ByteBuffer readBuffer = ByteBuffer.allocateDirect(RxPSocket.MAX_PACKET_SIZE);
+
+  private RxPEngine() throws IOException {
+    selector = Selector.open();
+    registrations = new ConcurrentLinkedQueue<>();
+    closings = new ConcurrentLinkedQueue<>();
+
+    thread = new Thread(this, "RxP-Engine");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public static synchronized RxPEngine getInstance() throws SocketException {
+    if (instance == null) {
+      try {
+        instance = new RxPEngine();
+      } catch (IOException e) {
+        throw new SocketException("Could not open selector: " + e.getMessage());
+      }
+    }
+    return instance;
+  }
+
+  // Opens a non-blocking channel bound to bindAddress (any free port if
+  // null) and adds it to the loop.
+  public RxPEndpoint open(SocketAddress bindAddress) throws SocketException {
+    DatagramChannel channel = null;
+    try {
+      channel = DatagramChannel.open();
+      channel.bind(bindAddress);
+      channel.configureBlocking(false);
+    } catch (SocketException e) {
+      closeQuietly(channel);
+      throw e;
+    } catch (IOException e) {
+      closeQuietly(channel);
+      throw new SocketException(e.getMessage());
+    }
+
+    RxPEndpoint endpoint = new RxPEndpoint(channel, this);
+    registrations.add(endpoint);
+    selector.wakeup();
+    return endpoint;
+  }
+
+  // Closes a channel and returns once its port is free to bind again. A
+  // registered channel keeps its socket open until the selector drops its
+  // key, which only happens on the engine thread, so the close is handed
+  // to that thread and waited for.
+  public void close(DatagramChannel channel) {
+    if (Thread.currentThread() == thread) {
+      // Dropped as soon as we get back to select()
+      cancel(channel);
+      return;
+    }
+
+    Closing closing = new Closing(channel);
+    closings.add(closing);
+    selector.wakeup();
+    try {
+      closing.done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+    }
+  }
+
+  private void cancel(DatagramChannel channel) {
+    SelectionKey key = channel.keyFor(selector);
+    if (key != null) {
+      key.cancel();
+    }
+    closeQuietly(channel);
+  }
+
+  // Closes the channels waiting in closings, and has the selector drop
+  // their keys straight away rather than on its next select().
+  private void closePending() {
+    List<Closing> done = new ArrayList<>();
+    Closing closing;
+    while ((closing = closings.poll()) != null) {
+      cancel(closing.channel);
+      done.add(closing);
+    }
+    if (done.isEmpty()) {
+      return;
+    }
+
+    try {
+      selector.selectNow();
+    } catch (IOException e) {
+    }
+    for (Closing finished : done) {
+      finished.done.complete(null);
+    }
+  }
+
+  // A channel to close, and whoever is waiting for its port to be freed
+  private static class Closing {
+    private final DatagramChannel channel;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Closing(DatagramChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private void closeQuietly(DatagramChannel channel) {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+    }
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        continue;
+      }
+
+      // Channels are registered from this thread, so a registration never
+      // waits on select()
+      RxPEndpoint endpoint;
+      while ((endpoint = registrations.poll()) != null) {
+        try {
+          endpoint.getChannel().register(selector, SelectionKey.OP_READ, endpoint);
+        } catch (ClosedChannelException e) {
+          // Closed before it was ever registered
+        }
+      }
+      closePending();
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+
+        if (key.isValid() && key.isReadable()) {
+          RxPEndpoint readable = (RxPEndpoint) key.attachment();
+          try {
+            if (!readable.readAvailable(readBuffer)) {
+              key.cancel();
+            }
+          } catch (RuntimeException e) {
+            // A bug in one socket's receive filter must not stop I/O for
+            // every other socket, so only that one is closed
+            System.err.println("RxP-Engine: closing port " + readable.getLocalPort() + " after " + e);
+            key.cancel();
+            readable.close();
+          }
+        }
+      }
+    }
+  }
+}
@@ -1,41 +1,63 @@
 import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 
 public class RxPPacket {
 
+  // Payload size used with peers that do not announce one in the handshake.
   public static final int DEFAULT_PACKET_SIZE = 200;
 
+  // Largest payload that fits a 1500 byte Ethernet MTU once the IP (20),
+  // UDP (8) and RxP header and checksum are added.
+  public static final int MAX_PAYLOAD_SIZE = 1500 - 20 - 8 - 20 - 4;
+
+  // CRC32C keeps state, so each thread reuses its own rather than every
+  // checksum allocating one. The JIT compiles it to the CPU's CRC32C
+  // instruction where there is one.
+  private static final ThreadLocal<CRC32C> HASHER = ThreadLocal.withInitial(CRC32C::new);
+
+  // The packet is the first length bytes of data, which may be a larger
+  // buffer (e.g. a datagram receive buffer) that wrap() points it at.
   private ByteBuffer data;
+  private int length;
 
-  public RxPPacket(byte[] buf) {
+  // Datagrams are variable length, so only the first length bytes of buf
+  // belong to the packet. The bytes are copied, so the packet can be kept
+  // after buf is reused.
+  public RxPPacket(byte[] buf, int length) {
     //System.out.println("Received Buffer: " + javax.xml.bind.DatatypeConverter.printHexBinary(buf));
-    byte[] dataBytes = Arrays.copyOfRange(buf, 0, DEFAULT_PACKET_SIZE+28);
+    byte[] dataBytes = Arrays.copyOfRange(buf, 0, length);
     //System.out.println("Received Data: " + javax.xml.bind.DatatypeConverter.printHexBinary(dataBytes));
 
     this.data = ByteBuffer.wrap(dataBytes);
+    this.length = length;
   }
 
   public RxPPacket(DatagramPacket packet) {
-    //this.packet = packet;
-    this.data = ByteBuffer.wrap(packet.getData());
-    // this.setPayload(packet.getData());
+    this(packet.getData(), packet.getLength());
   }
 
   public RxPPacket() {
-    this.data = ByteBuffer.allocate(DEFAULT_PACKET_SIZE + 28);
+    this.data = ByteBuffer.allocate(CONTROL_PACKET_LENGTH);
+    this.length = CONTROL_PACKET_LENGTH;
     //this.packet = new DatagramPacket(this.data.array(), DEFAULT_PACKET_SIZE);
   }
 
+  // An empty header-only packet with room to grow to capacity bytes
+  // without reallocating, as handed out by PacketPool.
+  public RxPPacket(int capacity) {
+    this.data = ByteBuffer.allocate(Math.max(capacity, CONTROL_PACKET_LENGTH));
+    this.length = CONTROL_PACKET_LENGTH;
+  }
+
   // TODO: correctly put all attributes in buffer...
   public RxPPacket(short src, short dest, int seq, int ackNum, boolean fin, boolean syn, boolean ack, boolean psh) {
-    this.data = ByteBuffer.allocate(DEFAULT_PACKET_SIZE + 28);
+    this.data = ByteBuffer.allocate(CONTROL_PACKET_LENGTH);
+    this.length = CONTROL_PACKET_LENGTH;
     this.setSrcPort(src);
     this.setDestPort(dest);
     this.setSeqNum(seq);
@@ -46,21 +68,92 @@ public class RxPPacket {
     this.setPSH(psh);
   }
 
+  // Points this packet at the first length bytes of buf, without copying,
+  // so one RxPPacket can be reused as a view over each datagram received
+  // into the same buffer. The view is only valid until buf is reused; use
+  // copyFrom() to keep anything that must outlive that.
+  public RxPPacket wrap(byte[] buf, int length) {
+    if (data == null || !data.hasArray() || data.array() != buf) {
+      data = ByteBuffer.wrap(buf);
+    }
+    this.length = length;
+    return this;
+  }
+
+  public RxPPacket wrap(DatagramPacket packet) {
+    return wrap(packet.getData(), packet.getLength());
+  }
+
+  // Overwrites this packet with a copy of other's bytes, reusing this
+  // packet's buffer if it is big enough.
+  public RxPPacket copyFrom(RxPPacket other) {
+    if (data.capacity() < other.length) {
+      data = ByteBuffer.allocate(other.length);
+    }
+    System.arraycopy(other.data.array(), 0, data.array(), 0, other.length);
+    length = other.length;
+    return this;
+  }
+
+  // Makes the datagram's buffer this packet's, without copying, and gives
+  // the datagram this packet's old buffer to receive into instead. Returns
+  // false, changing nothing, if the old buffer is too small for that.
+  public boolean takeBuffer(DatagramPacket datagram) {
+    byte[] old = data.array();
+    byte[] buf = datagram.getData();
+    if (old.length < buf.length || datagram.getOffset() != 0) {
+      return false;
+    }
+    data = ByteBuffer.wrap(buf);
+    length = datagram.getLength();
+    datagram.setData(old);
+    return true;
+  }
+
+  // Empties the packet back to a zeroed header, keeping its buffer.
+  public RxPPacket reset() {
+    Arrays.fill(data.array(), 0, CONTROL_PACKET_LENGTH, (byte) 0);
+    length = CONTROL_PACKET_LENGTH;
+    return this;
+  }
+
   //---- Masks and information pertaining to the header
   public static final int SOURCE_PORT_OFFSET = 0;
   public static final int DEST_PORT_OFFSET = 2;
   public static final int SEQ_NUMBER_OFFSET = 4;
   public static final int ACK_NUMBER_OFFSET = 8;
+  public static final int SACK_COUNT_OFFSET = 12;
   public static final int FLAGS_BYTE_OFFSET = 13;
+  public static final int INTEGRITY_OFFSET = 14;
   public static final int WINDOW_SIZE_OFFSET = 15;
+  public static final int WINDOW_SCALE_OFFSET = 17;
+  public static final int PAYLOAD_LENGTH_OFFSET = 18;
   public static final int PAYLOAD_OFFSET = 20;
-  public static final int CHECKSUM_OFFSET = DEFAULT_PACKET_SIZE+PAYLOAD_OFFSET;
+
+  // The checksum (a 32 bit CRC) follows the payload, wherever that ends.
+  public static final int CHECKSUM_LENGTH = 4;
+
+  // Size of a packet with no payload or SACK blocks, e.g. a plain ACK or a
+  // handshake or close packet.
+  public static final int CONTROL_PACKET_LENGTH = PAYLOAD_OFFSET + CHECKSUM_LENGTH;
+
+  // Selective ACK blocks (pairs of first and last sequence numbers held by
+  // the receiver) sit between the fixed header and the payload.
+  public static final int SACK_BLOCKS_OFFSET = PAYLOAD_OFFSET;
+  public static final int SACK_BLOCK_LENGTH = 8;
+  public static final int MAX_SACK_BLOCKS = 4;
 
   public static final byte FIN_MASK = 0b00000001;
   public static final byte SYN_MASK = 0b00000010;
   public static final byte ACK_MASK = 0b00000100;
   public static final byte PSH_MASK = 0b00001000;
 
+  // Set on a data packet that also acknowledges the peer's data: its ACK
+  // number and window mean what they would on a standalone ACK. It is not
+  // one of the four flags above, so the packet is still plain data to
+  // everything that looks at those.
+  public static final byte PIGGYBACK_MASK = 0b00010000;
+
   //---- Functions that allow for getting and setting of bit flags
   public boolean isFIN() {
     byte result = (byte) ( this.data.get(FLAGS_BYTE_OFFSET) & FIN_MASK);
@@ -123,6 +216,25 @@ public class RxPPacket {
     this.data.put(FLAGS_BYTE_OFFSET, newByte);
   }
 
+  public boolean isPiggybackedACK() {
+    return (this.data.get(FLAGS_BYTE_OFFSET) & PIGGYBACK_MASK) != 0;
+  }
+
+  public void setPiggybackedACK(boolean set) {
+    byte newByte = this.data.get(FLAGS_BYTE_OFFSET);
+    if (set) {
+      newByte = (byte)(newByte | PIGGYBACK_MASK);
+    } else {
+      newByte = (byte)(newByte & ~PIGGYBACK_MASK);
+    }
+    this.data.put(FLAGS_BYTE_OFFSET, newByte);
+  }
+
+  // All four flags at once, as a combination of the masks above
+  public int getFlags() {
+    return this.data.get(FLAGS_BYTE_OFFSET) & (FIN_MASK | SYN_MASK | ACK_MASK | PSH_MASK);
+  }
+
   //---- Getters and setters for RxPPacket items.
   public short getSrcPort() {
     return data.getShort(SOURCE_PORT_OFFSET);
@@ -164,66 +276,165 @@ public class RxPPacket {
     data.putShort(WINDOW_SIZE_OFFSET, port);
   }
 
-  public long getChecksum() {
-    return data.getLong(CHECKSUM_OFFSET);
+  // Shift applied to every window the sender of this SYN advertises.
+  public int getWindowScale() {
+    return data.get(WINDOW_SCALE_OFFSET);
   }
 
-  public void setChecksum(long checksum) {
-    data.putLong(CHECKSUM_OFFSET, checksum);
+  public void setWindowScale(int scale) {
+    data.put(WINDOW_SCALE_OFFSET, (byte) scale);
   }
 
-  public long calculateChecksum() {
-    byte[] buf = Arrays.copyOfRange(data.array(), 0, CHECKSUM_OFFSET);
-    CRC32 hasher = new CRC32();
-    hasher.update(buf);
-    return hasher.getValue();
+  public int getSACKBlockCount() {
+    return data.get(SACK_COUNT_OFFSET);
   }
 
-  // Returns the length that the payload can be.
-  public int getLength() {
-    return DEFAULT_PACKET_SIZE;
+  public int getSACKBlockStart(int block) {
+    return data.getInt(SACK_BLOCKS_OFFSET + block * SACK_BLOCK_LENGTH);
   }
 
-  // Retrives the payload data.
-  public byte[] getPayload() {
+  public int getSACKBlockEnd(int block) {
+    return data.getInt(SACK_BLOCKS_OFFSET + block * SACK_BLOCK_LENGTH + 4);
+  }
 
-    // Read ByteBuffer into ByteList
-    data.rewind();
-    List<Byte> byteList = new ArrayList<>();
-    while (data.hasRemaining()) {
-      byteList.add(data.get());
+  // Appends a selective ACK block, moving any payload along to make room.
+  // Returns false once the packet is full.
+  public boolean addSACKBlock(int start, int end) {
+    int count = getSACKBlockCount();
+    if (count >= MAX_SACK_BLOCKS) {
+      return false;
     }
 
-    // Reset Cursor
-    data.position(byteList.size());
+    int payloadOffset = getPayloadOffset();
+    ensureCapacity(length + SACK_BLOCK_LENGTH);
+    byte[] array = data.array();
+    System.arraycopy(array, payloadOffset, array, payloadOffset + SACK_BLOCK_LENGTH, getPayloadLength());
 
-    // convert Byte List to byte array
-    byte[] payload = new byte[byteList.size()];
-    for (int i = 0; i < payload.length; i++) {
-      payload[i] = byteList.get(i);
+    data.put(SACK_COUNT_OFFSET, (byte) (count + 1));
+    data.putInt(SACK_BLOCKS_OFFSET + count * SACK_BLOCK_LENGTH, start);
+    data.putInt(SACK_BLOCKS_OFFSET + count * SACK_BLOCK_LENGTH + 4, end);
+    length += SACK_BLOCK_LENGTH;
+    return true;
+  }
+
+  // Where the payload starts, after the header and any SACK blocks.
+  public int getPayloadOffset() {
+    return PAYLOAD_OFFSET + getSACKBlockCount() * SACK_BLOCK_LENGTH;
+  }
+
+  public int getPayloadLength() {
+    return data.getShort(PAYLOAD_LENGTH_OFFSET) & 0xFFFF;
+  }
+
+  public int getChecksumOffset() {
+    return getPayloadOffset() + getPayloadLength();
+  }
+
+  // True if the length fields agree with the size of the datagram, so the
+  // rest of the packet can be read safely.
+  public boolean isWellFormed() {
+    if (length < CONTROL_PACKET_LENGTH || length > data.capacity()) {
+      return false;
     }
+    int sackBlocks = getSACKBlockCount();
+    return sackBlocks >= 0 && sackBlocks <= MAX_SACK_BLOCKS
+        && getChecksumOffset() + CHECKSUM_LENGTH == length;
+  }
 
-    return payload;
+  // What the checksum covers. Null if the field holds no known mode.
+  public IntegrityMode getIntegrity() {
+    return IntegrityMode.fromCode(data.get(INTEGRITY_OFFSET));
+  }
+
+  public void setIntegrity(IntegrityMode mode) {
+    data.put(INTEGRITY_OFFSET, (byte) mode.getCode());
+  }
+
+  // True if the packet is well formed and its checksum matches the part of
+  // it its integrity mode covers. The length fields are checked first, so
+  // this is safe to call before reading anything else.
+  public boolean isChecksumValid() {
+    return isWellFormed() && getIntegrity() != null && getChecksum() == calculateChecksum();
+  }
+
+  public long getChecksum() {
+    return data.getInt(getChecksumOffset()) & 0xFFFFFFFFL;
+  }
+
+  public void setChecksum(long checksum) {
+    data.putInt(getChecksumOffset(), (int) checksum);
   }
 
-  // Sets the payload data
+  // Hashes the packet in place: everything up to the checksum, or just up
+  // to the payload for HEADER. Zero for NONE.
+  public long calculateChecksum() {
+    IntegrityMode mode = getIntegrity();
+    if (mode == IntegrityMode.NONE) {
+      return 0;
+    }
+
+    int end = mode == IntegrityMode.HEADER ? getPayloadOffset() : getChecksumOffset();
+    CRC32C hasher = HASHER.get();
+    hasher.reset();
+    hasher.update(data.array(), 0, end);
+    return hasher.getValue();
+  }
+
+  // Returns the length of the payload.
+  public int getLength() {
+    return getPayloadLength();
+  }
+
+  // The payload as a read-only view, without copying it.
+  public ByteBuffer getPayload() {
+    return ByteBuffer.wrap(data.array(), getPayloadOffset(), getPayloadLength())
+        .slice().asReadOnlyBuffer();
+  }
+
+  // Sets the payload data. The packet grows or shrinks to fit it exactly.
   public void setPayload(byte[] buf) {
+    setPayload(buf, 0, buf.length);
+  }
+
+  // Sets the payload to count bytes of buf from offset, reusing the
+  // packet's buffer when it is big enough.
+  public void setPayload(byte[] buf, int offset, int count) {
+    int payloadOffset = getPayloadOffset();
+    ensureCapacity(payloadOffset + count + CHECKSUM_LENGTH);
+    System.arraycopy(buf, offset, data.array(), payloadOffset, count);
+    data.putShort(PAYLOAD_LENGTH_OFFSET, (short) count);
+    length = payloadOffset + count + CHECKSUM_LENGTH;
+  }
 
-    for (int i = 0; i < buf.length && i < CHECKSUM_OFFSET; i++) {
-      data.put(i + PAYLOAD_OFFSET, buf[i]);
+  // Reallocates the buffer if it cannot hold a packet of the given length,
+  // keeping the current contents.
+  private void ensureCapacity(int capacity) {
+    if (data.capacity() < capacity) {
+      ByteBuffer resized = ByteBuffer.allocate(capacity);
+      resized.put(data.array(), 0, length);
+      this.data = resized;
     }
   }
 
   // Return everything that's not the header
   public byte[] getPacketData() {
-    byte[] payload = getPayload();
-
-    byte[] packetData = Arrays.copyOfRange(payload, PAYLOAD_OFFSET, CHECKSUM_OFFSET);
+    int offset = getPayloadOffset();
+    return Arrays.copyOfRange(data.array(), offset, offset + getPayloadLength());
+  }
 
-    return packetData;
+  // Copies length bytes of the payload, starting position bytes in, into
+  // dst without an intermediate array.
+  public void copyPacketData(int position, byte[] dst, int dstOffset, int length) {
+    System.arraycopy(data.array(), getPayloadOffset() + position, dst, dstOffset, length);
   }
 
   public DatagramPacket asDatagramPacket() {
-    return new DatagramPacket(data.array(), data.array().length);
+    return new DatagramPacket(data.array(), length);
+  }
+
+  // Points an existing DatagramPacket at this packet's bytes, so sending
+  // does not need a new one each time.
+  public void toDatagramPacket(DatagramPacket packet) {
+    packet.setData(data.array(), 0, length);
   }
 }
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+// Accepts any number of RxP connections on one bound UDP port. Datagrams
+// are split by the peer's address and port, and each new peer's handshake
+// runs as soon as its first SYN arrives, several at a time, so accept()
+// only hands out connections that are already established.
+public class RxPServerSocket {
+
+  public static final int DEFAULT_BACKLOG = 50;
+  public static final int HANDSHAKE_THREADS = 4;
+
+  private RxPEndpoint endpoint;
+  private ArrayBlockingQueue<RxPSocket> established;
+  private ExecutorService handshakes;
+
+  // Applied to each accepted socket before its handshake
+  private volatile int windowSize = ReorderBuffer.DEFAULT_CAPACITY;
+
+  private volatile boolean closed = false;
+
+  public RxPServerSocket(int port, InetAddress address) throws SocketException {
+    this(port, address, DEFAULT_BACKLOG);
+  }
+
+  // backlog is how many peers may be handshaking or waiting for accept()
+  // at once. SYNs from further peers are dropped until there is room, and
+  // their retransmissions get in later.
+  public RxPServerSocket(int port, InetAddress address, int backlog) throws SocketException {
+    this.established = new ArrayBlockingQueue<>(Math.max(1, backlog));
+    this.handshakes = Executors.newFixedThreadPool(HANDSHAKE_THREADS, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RxP-Handshake");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.endpoint = RxPEngine.getInstance().open(new InetSocketAddress(address, port));
+    this.endpoint.listen(Math.max(1, backlog), new Consumer<RxPEndpoint>() {
+      public void accept(RxPEndpoint peer) {
+        try {
+          handshakes.execute(new Runnable() {
+            public void run() {
+              handshake(peer);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // We are closing
+          peer.close();
+        }
+      }
+    });
+  }
+
+  private void handshake(RxPEndpoint peer) {
+    RxPSocket socket = new RxPSocket(peer);
+    socket.setWindowSize(windowSize);
+    try {
+      socket.handshake("Server", (short) 0, (short) 0);
+      socket.isConnected = true;
+      established.put(socket);
+
+      // Nobody will accept it now
+      if (closed && established.remove(socket)) {
+        socket.close();
+      }
+    } catch (IOException | InterruptedException e) {
+      // The peer went away part way through, or we are closing
+      peer.close();
+    }
+  }
+
+  // Waits for the next established connection.
+  public RxPSocket accept() throws IOException {
+    try {
+      RxPSocket socket = established.take();
+      socket.markAccepted();
+      return socket;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("accept() interrupted");
+    }
+  }
+
+  // Sets the window for connections accepted from now on.
+  public void setWindowSize(int windowSize) {
+    this.windowSize = Math.max(1, windowSize);
+  }
+
+  public int getLocalPort() {
+    return endpoint.getLocalPort();
+  }
+
+  // Stops accepting connections. Those already accepted carry on, and the
+  // port is freed once they are closed as well. Connections established
+  // but not yet accepted are closed.
+  public void close() {
+    closed = true;
+    endpoint.close();
+    handshakes.shutdownNow();
+
+    RxPSocket socket;
+    while ((socket = established.poll()) != null) {
+      socket.close();
+    }
+  }
+}
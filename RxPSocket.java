@@ -1,36 +1,168 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 
 public class RxPSocket {
 
   public static final int MAX_PACKET_SIZE = 2000;
 
-  // Private variables used in several states
-  private DatagramSocket dgSocket;
-  private int windowSize = 5; // Stop and Wait length
+  // How long a sender waits without hearing anything before giving up.
+  // receive() waits longer for the next packet of a message (see
+  // getReceiveIdleMillis()), so it never gives up while the sender is
+  // still resending.
+  public static final long CONNECTION_TIMEOUT_MILLIS = 12000;
+
+  // How long we keep answering duplicates of a message we have finished
+  // receiving. The sender keeps resending until it hears our final ACK or
+  // gives up, so it is as long as a sender waits.
+  public static final long TIME_WAIT_MILLIS = CONNECTION_TIMEOUT_MILLIS;
+
+  // Private variables used in several states. All datagrams go through
+  // the endpoint, which is either our own channel or one peer's share of
+  // an RxPServerSocket's.
+  private RxPEndpoint endpoint;
+  private DatagramPacket sendDatagram = new DatagramPacket(new byte[0], 0);
+  private volatile int windowSize = ReorderBuffer.DEFAULT_CAPACITY; // Packets we will buffer for the peer
 
   // Variables that are set in the LISTEN/ACCEPT phases.
   private InetAddress acceptedAddress;
 
-  private static ConnectionManager connectionManager;
+  // Handshake and close state for this socket's connection
+  private final ConnectionManager connectionManager = new ConnectionManager();
+
+  // Buffers for packets we build or keep, recycled rather than allocated
+  // per packet
+  private PacketPool packetPool = new PacketPool(MAX_PACKET_SIZE, 4 * ReorderBuffer.DEFAULT_CAPACITY);
+
+  // Holds data packets that arrive ahead of the next expected one
+  private ReorderBuffer reorderBuffer = new ReorderBuffer(ReorderBuffer.DEFAULT_CAPACITY, packetPool);
+
+  // The ACK for received data is rebuilt in place for every packet
+  private RxPPacket dataACK = new RxPPacket(MAX_PACKET_SIZE);
+  private DatagramPacket dataACKDatagram = new DatagramPacket(new byte[0], 0);
+  private int[] sackStarts = new int[RxPPacket.MAX_SACK_BLOCKS];
+  private int[] sackEnds = new int[RxPPacket.MAX_SACK_BLOCKS];
+
+  // The ACK for a message received in full is held back for up to
+  // DELAYED_ACK_MILLIS, since the application often answers straight away
+  // and the answer's first packet can carry it. The timer sends it on its
+  // own if nothing does. Guarded by delayedACK.
+  //
+  // Only worth it while the application does answer, so, like TCP's
+  // ping-pong mode, interactive is learnt as we go: sending a message
+  // within DELAYED_ACK_MILLIS of receiving one turns it on, and a held
+  // back ACK that nothing came to carry turns it off.
+  //
+  // In-order data mid-message is ACKed every ackFrequency packets, the
+  // ACK for the ones in between held back the same way; packetsUnacked
+  // counts them.
+  public static final long DELAYED_ACK_MILLIS = 20;
+  private volatile boolean interactive = false;
+  private volatile int packetsUnacked = 0;
+  private volatile long lastMessageReceivedNanos = System.nanoTime();
+  private RxPPacket delayedACK = new RxPPacket(MAX_PACKET_SIZE);
+  private DatagramPacket delayedACKDatagram = new DatagramPacket(new byte[0], 0);
+  private volatile boolean ackDelayed = false;
+  private ScheduledFuture<?> delayedACKTimer;
+
+  // In-order packets received but not yet read by the application
+  private int unreadPackets = 0;
+
+  // Sequence numbers carry on from one message to the next in each
+  // direction, so a late duplicate of an earlier message is told apart
+  // from the next one by number alone. These are the first sequence
+  // numbers of the next message we send and receive.
+  private volatile int nextSendSeqNum = 1;
+  private volatile int nextReceiveSeqNum = 1;
+
+  // Set once a message stopped arriving part way through. The part we
+  // had was ACKed and will not be sent again, so nothing after it can be
+  // received on this connection.
+  private volatile boolean receiveBroken = false;
+
+  // TIME_WAIT for the last message received: its final PSH+ACK, sent
+  // again to any duplicate from that message, until timeWaitUntilNanos.
+  // receive() returns as soon as the message is complete rather than
+  // waiting for stragglers; whichever read comes next answers them.
+  private RxPPacket timeWaitACK = new RxPPacket(MAX_PACKET_SIZE);
+  private DatagramPacket timeWaitDatagram = new DatagramPacket(new byte[0], 0);
+  private long timeWaitUntilNanos = System.nanoTime();
+
+  // Measured round trip time, used for every retransmission timeout
+  private RttEstimator rttEstimator = new RttEstimator();
+  private long handshakeSentNanos;
+
+  // Limits how much is in flight, on top of the peer's window
+  private CongestionController congestionController = new RenoCongestionController();
+
+  // Receive windows are sent as (window >> scale) so they fit in a short.
+  // Each side announces its scale on its handshake packets.
+  public static final int MAX_WINDOW_SCALE = 14;
+  private int windowScale = 0;
+  private int peerWindowScale = 0;
+  private int peerWindow = 1;
+
+  // Largest payload we accept, announced on our handshake packets, and the
+  // size actually used: the smaller of ours and the peer's.
+  private int maxPayloadSize = RxPPacket.MAX_PAYLOAD_SIZE;
+  private int payloadSize = RxPPacket.DEFAULT_PACKET_SIZE;
+
+  // Most data packets one ACK may cover, announced on our handshake
+  // packets, and the number actually used: the smaller of ours and the
+  // peer's. A peer that announces none is ACKed every packet.
+  public static final int DEFAULT_ACK_FREQUENCY = 2;
+  private int maxAckFrequency = DEFAULT_ACK_FREQUENCY;
+  private int ackFrequency = 1;
+
+  // What data packets and their ACKs checksum. Starts as our preference
+  // and becomes the stronger of ours and the peer's in the handshake.
+  private IntegrityMode integrityMode = IntegrityMode.CRC32C;
+
+  // Unacknowledged packets outgoing messages may hold at once
+  private int sendBufferSize = ReorderBuffer.DEFAULT_CAPACITY;
+
+  // Outgoing messages follow one another through a single send window, so
+  // the next can go out while the last is still being acknowledged. A new
+  // pipeline replaces one that failed. Messages are written into it whole,
+  // one at a time, by whoever holds messageWriter.
+  private volatile SendPipeline sendPipeline;
+  private final Semaphore messageWriter = new Semaphore(1);
+
+  private boolean handshakeResent;
 
   private short srcPort;
   private short destPort;
 
   private InetAddress srcAddress;
-  private InetAddress destAddress;
+  private InetAddress destAddress; // Peer's host, part of our connection's key
+
+  // Read by other threads, e.g. FxAClient's CLILoop and ReceiveLoop
+  public volatile boolean isClient;
+  public volatile boolean isConnected;
+  public volatile boolean isClientSending;
+
+  // For receiveInBackground(), which waits on this socket's lock
+  private DatagramPacket backgroundDatagram = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+  private RxPPacket backgroundView = new RxPPacket();
 
-  public boolean isClient;
-  public boolean isConnected;
-  public static boolean isClientSending;
+  // For handleOnArrival(), on the engine thread
+  private RxPPacket arrivalView = new RxPPacket();
+  private volatile Runnable peerCloseListener;
 
   // TODO: Add a timer for timeouts.
 
   public RxPSocket()
       throws SocketException {
-    dgSocket = new DatagramSocket();
-    connectionManager = new ConnectionManager();
+    endpoint = RxPEngine.getInstance().open(null);
+    endpoint.setReceiveFilter(this::handleOnArrival);
     this.isClient = false;
     this.isConnected = false;
   }
@@ -39,8 +171,8 @@ public class RxPSocket {
 
     this.srcPort = (short) port;
 
-    dgSocket = new DatagramSocket(port);
-    connectionManager = new ConnectionManager();
+    endpoint = RxPEngine.getInstance().open(new InetSocketAddress(port));
+    endpoint.setReceiveFilter(this::handleOnArrival);
     this.isClient = false;
     this.isConnected = false;
 	}
@@ -50,74 +182,195 @@ public class RxPSocket {
     this.srcPort = (short) port;
     this.srcAddress = address;
 
-    dgSocket = new DatagramSocket(port, address);
-    connectionManager = new ConnectionManager();
+    endpoint = RxPEngine.getInstance().open(new InetSocketAddress(address, port));
+    endpoint.setReceiveFilter(this::handleOnArrival);
     this.isClient = false;
     this.isConnected = false;
 	}
 
+  // A socket for one peer of an RxPServerSocket. The handshake is still to
+  // be run.
+  RxPSocket(RxPEndpoint endpoint) {
+    this.endpoint = endpoint;
+    endpoint.setReceiveFilter(this::handleOnArrival);
+    this.srcPort = (short) endpoint.getLocalPort();
+    this.destAddress = endpoint.getInetAddress();
+    this.isClient = false;
+    this.isConnected = false;
+  }
+
   public RxPSocket(boolean isClient, int port, InetAddress address) throws SocketException {
 
     this.isClient = isClient;
     this.srcPort = (short) port;
     this.srcAddress = address;
 
-    dgSocket = new DatagramSocket(port, address);
-    connectionManager = new ConnectionManager();
+    endpoint = RxPEngine.getInstance().open(new InetSocketAddress(address, port));
+    endpoint.setReceiveFilter(this::handleOnArrival);
     this.isConnected = false;
   }
 
+  // Called once an RxPServerSocket hands this socket out.
+  void markAccepted() {
+    endpoint.markAccepted();
+  }
+
   public static RxPSocket newRxPClientSocket(int port, InetAddress address) throws IOException {
     return new RxPSocket(true, port, address);
   }
 
+  // Sets how many packets we buffer for the peer, which is the window we
+  // advertise. Takes effect from the next receive().
   public void setWindowSize(int windowSize) {
-    this.windowSize = windowSize;
+    this.windowSize = Math.max(1, windowSize);
+  }
+
+  // Receive buffer space we can offer the peer, in packets past the last
+  // in-order one: the reorder buffer less whatever the application has
+  // not read yet.
+  private int getAdvertisedWindow() {
+    return Math.max(0, reorderBuffer.getCapacity() - unreadPackets);
+  }
+
+  // Stamps our receive window into an outgoing packet. Handshake packets
+  // also get the window scale and, as their payload, the largest payload
+  // we accept, the integrity mode we want and our ACK frequency. Call
+  // before the checksum is calculated.
+  private void advertiseWindow(RxPPacket packet) {
+    if (packet.isSYN()) {
+      while ((windowSize >> windowScale) > 0xFFFF && windowScale < MAX_WINDOW_SCALE) {
+        windowScale++;
+      }
+      packet.setWindowScale(windowScale);
+      packet.setPayload(ByteBuffer.allocate(4)
+          .putShort((short) maxPayloadSize)
+          .put((byte) integrityMode.getCode())
+          .put((byte) maxAckFrequency)
+          .array());
+    }
+    int window = Math.min(getAdvertisedWindow() >> windowScale, 0xFFFF);
+    packet.setWindowSize((short) window);
+  }
+
+  private int readPeerWindow(RxPPacket packet) {
+    return (packet.getWindowSize() & 0xFFFF) << peerWindowScale;
+  }
+
+  // Takes the receive window from an ACK so the sender stays inside it.
+  private void applyPeerWindow(SendWindow sendWindow, RxPPacket ackPacket) {
+    peerWindow = readPeerWindow(ackPacket);
+    sendWindow.updatePeerWindow(ackPacket.getACKNum(), peerWindow);
+  }
+
+  // Largest payload to offer the peer, normally the path MTU less headers.
+  // Must be set before connect() or listen().
+  public void setMaxPayloadSize(int maxPayloadSize) {
+    int largest = MAX_PACKET_SIZE - RxPPacket.PAYLOAD_OFFSET
+        - RxPPacket.MAX_SACK_BLOCKS * RxPPacket.SACK_BLOCK_LENGTH - RxPPacket.CHECKSUM_LENGTH;
+    this.maxPayloadSize = Math.max(1, Math.min(maxPayloadSize, largest));
+  }
+
+  public int getPayloadSize() {
+    return payloadSize;
+  }
+
+  // How many data packets one ACK may cover, at most 255. Must be set
+  // before connect() or listen(); the peer may ask for fewer.
+  public void setAckFrequency(int maxAckFrequency) {
+    this.maxAckFrequency = Math.max(1, Math.min(maxAckFrequency, 0xFF));
+  }
+
+  public int getAckFrequency() {
+    return ackFrequency;
+  }
+
+  // Chooses how much of each data packet is checksummed. Must be set
+  // before connect() or listen(); the peer may insist on a stronger mode.
+  public void setIntegrityMode(IntegrityMode integrityMode) {
+    this.integrityMode = integrityMode;
+  }
+
+  public IntegrityMode getIntegrityMode() {
+    return integrityMode;
+  }
+
+  // Validates a received packet before anything else is read from it. A
+  // packet must be checksummed with CRC32C, as control packets always are,
+  // or with the mode negotiated for this connection, so a corrupted mode
+  // field cannot switch checking off.
+  private boolean isIntact(RxPPacket packet) {
+    if (!packet.isChecksumValid()) {
+      return false;
+    }
+    IntegrityMode mode = packet.getIntegrity();
+    return mode == IntegrityMode.CRC32C || mode == integrityMode;
+  }
+
+  // Selects the congestion control algorithm, e.g. Reno or CUBIC.
+  public void setCongestionController(CongestionController congestionController) {
+    this.congestionController = congestionController;
+  }
+
+  // Ceiling for the retransmission timeout as it backs off. The peer is
+  // taken to use the same one.
+  public void setMaxRetransmitTimeout(int timeoutMillis) {
+    rttEstimator.setMaxTimeout(timeoutMillis);
+  }
+
+  // How long receive() waits for the next packet. A sender only notices
+  // CONNECTION_TIMEOUT_MILLIS of silence when its timer next fires, up to
+  // one backed-off timeout later, and resends until then.
+  private long getReceiveIdleMillis() {
+    return CONNECTION_TIMEOUT_MILLIS + rttEstimator.getMaxTimeout();
   }
 
   // public boolean isConnected() {
-  //   return connectionManager.getConnection(dgSocket.getPort(), dgSocket.getHostPort());
+  //   return connectionManager.getConnection(destAddress, dgSocket.getPort(), dgSocket.getHostPort());
   // }
 
   /* Connect, Send, and Receive Methods */
-  public void connect(InetAddress address, int port) {
-    this.isConnected = true;
+  // Throws if the handshake fails, e.g. SocketTimeoutException if the
+  // server does not answer within CONNECTION_TIMEOUT_MILLIS.
+  public void connect(InetAddress address, int port) throws IOException {
     this.isClientSending = true;
 
     this.destAddress = address;
     this.destPort = (short) port;
 
-    dgSocket.connect(address, port);
+    endpoint.connect(address, port);
 
     // Initiate handshake
-    short src = (short) dgSocket.getLocalPort();
-    short dest = (short) dgSocket.getPort();
+    short src = (short) endpoint.getLocalPort();
+    short dest = (short) endpoint.getPort();
 
-    Connection connection = connectionManager.getConnection(dest, src);
+    Connection connection = connectionManager.getConnection(destAddress, dest, src);
 
     // Initial Handshake Packet
     RxPPacket handshakePacket = connectionManager.getNextHandshakePacket(connection);
+    advertiseWindow(handshakePacket);
+    handshakePacket.setChecksum(handshakePacket.calculateChecksum());
 
     try {
 
       DatagramPacket dg = handshakePacket.asDatagramPacket();
-      connectionManager.updateConnection(handshakePacket);
+      connectionManager.updateConnection(destAddress, handshakePacket);
 
       // Send Initial Handshake Packet
-      dgSocket.send(dg);
-
-    } catch (IOException e) {
-      // System.out.println("Handshake Packet did not send");
-    }
+      endpoint.send(dg);
+      handshakeSentNanos = System.nanoTime();
+      handshakeResent = false;
 
-    // Listen for next handshake packet
-    try {
+      // Listen for next handshake packet
       this.handshake("Client", dest, src);
     } catch (IOException e) {
-      // // System.out.println("Could not receive handshake packet");
+      // Start afresh if connect() is called again
+      connectionManager.removeConnection(destAddress, dest, src);
+      clientSendingDone();
+      throw e;
     }
 
-    this.isClientSending = false;
+    this.isConnected = true;
+    clientSendingDone();
   }
 
   public void listen() {
@@ -126,6 +379,7 @@ public class RxPSocket {
 
     try {
       this.handshake("Server", (short) 0, (short) 0);
+      this.isConnected = true;
     } catch (IOException ioe) {
       // // System.out.println("Handshake Packet IOException");
     }
@@ -134,28 +388,43 @@ public class RxPSocket {
   public void handshake(String hostType, short dest, short source) throws IOException {
 
     DatagramPacket dgPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+    RxPPacket packetView = new RxPPacket(); // Reused for every datagram received
 
     Connection serverConnection = null;
     boolean allowedToSendData = false;
     boolean sendingData = false;
 
     // Used to resend lost handshake packets
-    int timeoutMillis = 300;
     try {
-      dgSocket.setSoTimeout(timeoutMillis);
+      endpoint.setSoTimeout((int) rttEstimator.getRetransmitTimeout());
     } catch(SocketException se) {
       // TODO: Add error handling
     }
 
+    // The handshake must finish within CONNECTION_TIMEOUT_MILLIS of our
+    // SYN, or for a server of the peer's SYN, however much else arrives
+    // meanwhile. A server listening on its own waits for the first intact
+    // packet before it starts the clock.
+    boolean started = hostType.equals("Client") || endpoint.isPeer();
+    long startedNanos = endpoint.isPeer() ? endpoint.getAdmittedNanos() : System.nanoTime();
+
     while (!sendingData) {
+      if (started && (System.nanoTime() - startedNanos) / 1000000 >= CONNECTION_TIMEOUT_MILLIS) {
+        throw new SocketTimeoutException("Handshake timed out");
+      }
+
       try {
-        dgSocket.receive(dgPacket);
+        endpoint.receive(dgPacket);
       }
       catch(SocketTimeoutException ste) {
-        if (connectionManager.getConnection(dest, source).isAllowedToSendData()) {
+        // Wait longer before the next resend
+        rttEstimator.backOff();
+        endpoint.setSoTimeout((int) rttEstimator.getRetransmitTimeout());
+
+        if (connectionManager.getConnection(destAddress, dest, source).isAllowedToSendData()) {
           // If the client has moved into the sending data state, so let's give one
           // last shot.
-          connectionManager.getConnection(dest, source).setSendingData(true);
+          connectionManager.getConnection(destAddress, dest, source).markSendingData();
           break;
         }
         else if (serverConnection != null ||  hostType.equals("Client")) { // successfully connected
@@ -165,28 +434,62 @@ public class RxPSocket {
         continue;
       }
 
-      RxPPacket receivedRxPPacket = new RxPPacket(dgPacket.getData());
+      RxPPacket receivedRxPPacket = packetView.wrap(dgPacket);
 
       // Check the checksum to make sure no corruption occurred
-      long checksum = receivedRxPPacket.getChecksum();
-      long currentChecksum = receivedRxPPacket.calculateChecksum();
-      if (currentChecksum == checksum) {
+      if (isIntact(receivedRxPPacket)) {
+        if (!started) {
+          started = true;
+          startedNanos = System.nanoTime();
+        }
+
+        // Handshake packets carry the peer's receive window, its scale, the
+        // largest payload it accepts, the integrity mode it wants and how
+        // many packets it lets one ACK cover
+        if (receivedRxPPacket.isSYN() && !connectionManager.isTerminatePacket(receivedRxPPacket)) {
+          peerWindowScale = Math.min(receivedRxPPacket.getWindowScale(), MAX_WINDOW_SCALE);
+          peerWindow = readPeerWindow(receivedRxPPacket);
+
+          ByteBuffer peerMaxPayload = receivedRxPPacket.getPayload();
+          if (peerMaxPayload.remaining() >= 2) {
+            int peerMaxPayloadSize = peerMaxPayload.getShort(0) & 0xFFFF;
+            payloadSize = Math.max(1, Math.min(maxPayloadSize, peerMaxPayloadSize));
+          }
+          if (peerMaxPayload.remaining() >= 3) {
+            IntegrityMode peerIntegrityMode = IntegrityMode.fromCode(peerMaxPayload.get(2));
+            if (peerIntegrityMode != null) {
+              integrityMode = IntegrityMode.stronger(integrityMode, peerIntegrityMode);
+            }
+          }
+          if (peerMaxPayload.remaining() >= 4) {
+            int peerAckFrequency = peerMaxPayload.get(3) & 0xFF;
+            ackFrequency = Math.max(1, Math.min(maxAckFrequency, peerAckFrequency));
+          }
+        }
 
         // Initialize servers connection after first non corrupt packet is received
         if (hostType.equals("Server") && serverConnection == null) {
-          serverConnection = connectionManager.getConnection(receivedRxPPacket);
+          destAddress = dgPacket.getAddress();
+          serverConnection = connectionManager.getConnection(destAddress, receivedRxPPacket);
           dest = receivedRxPPacket.getDestPort();
           source = receivedRxPPacket.getSrcPort();
         }
 
         // If it's a handshake packet, send the next handshake packet
-        if (connectionManager.updateConnection(receivedRxPPacket)) {
+        if (connectionManager.updateConnection(destAddress, receivedRxPPacket)) {
 
-          // // System.out.println("Received Handshake Request: " + connectionManager.getConnection(receivedRxPPacket).connectionStateToString());
+          // This answers our last handshake packet, so it gives a first
+          // round trip sample (unless that packet had to be resent).
+          if (handshakeSentNanos != 0 && !handshakeResent) {
+            rttEstimator.addSample(System.nanoTime() - handshakeSentNanos);
+            endpoint.setSoTimeout((int) rttEstimator.getRetransmitTimeout());
+          }
+
+          // // System.out.println("Received Handshake Request: " + connectionManager.getConnection(destAddress, receivedRxPPacket).connectionStateToString());
           sendHandshakePacket(dest, source, dgPacket, true);
 
           // Update while loop condition
-          Connection connection = connectionManager.getConnection(dest, source);
+          Connection connection = connectionManager.getConnection(destAddress, dest, source);
           allowedToSendData = connection.isAllowedToSendData();
           sendingData = connection.isSendingData();
         }
@@ -196,14 +499,14 @@ public class RxPSocket {
       }
     }
     // do this on successful receive
-    dgSocket.connect(dgPacket.getAddress(), dgPacket.getPort());
+    endpoint.connect(dgPacket.getAddress(), dgPacket.getPort());
   }
 
   private void sendHandshakePacket(short dest, short source, DatagramPacket dgPacket, boolean sendNextPacket)
                 throws IOException {
 
     this.isClientSending = true;
-    Connection connection = connectionManager.getConnection(dest, source);
+    Connection connection = connectionManager.getConnection(destAddress, dest, source);
     RxPPacket handshakePacket = sendNextPacket ?
               connectionManager.getNextHandshakePacket(connection):
               connectionManager.getLastHandshakePacket(connection);
@@ -212,44 +515,69 @@ public class RxPSocket {
     if (handshakePacket != null) {
 
       if (sendNextPacket)
-        connectionManager.updateConnection(handshakePacket);
+        connectionManager.updateConnection(destAddress, handshakePacket);
+
+      advertiseWindow(handshakePacket);
+      handshakePacket.setChecksum(handshakePacket.calculateChecksum());
 
       if (dgPacket.getAddress() == null || dgPacket.getPort() == 0)
       {
-        dgPacket.setAddress(dgSocket.getInetAddress());
-        dgPacket.setPort(dgSocket.getPort());
+        dgPacket.setAddress(endpoint.getInetAddress());
+        dgPacket.setPort(endpoint.getPort());
       }
 
       DatagramPacket dg = handshakePacket.asDatagramPacket();
       dg.setAddress(dgPacket.getAddress());
       dg.setPort(dgPacket.getPort());
-      dgSocket.send(dg);
+      endpoint.send(dg);
+
+      if (sendNextPacket) {
+        handshakeSentNanos = System.nanoTime();
+        handshakeResent = false;
+      } else {
+        handshakeResent = true;
+      }
 
-      // // System.out.println("Sending Handshake Response: " + connectionManager.getConnection(handshakePacket).connectionStateToString());
+      // // System.out.println("Sending Handshake Response: " + connectionManager.getConnection(destAddress, handshakePacket).connectionStateToString());
       // // System.out.println();
     }
-    this.isClientSending = false;
+    clientSendingDone();
   }
 
   // Socket API Method
   public void close() {
+    if (!isConnected) {
+      // Never connected, or the peer has already closed it
+      endpoint.close();
+      return;
+    }
+
+    // Let messages still in flight finish first
+    try {
+      flush();
+    } catch (IOException e) {
+    }
     this.closeClientConnection(this.srcPort, this.destPort);
-    connectionManager.removeConnection(this.srcPort, this.destPort);
+    connectionManager.removeConnection(destAddress, this.srcPort, this.destPort);
     this.isConnected = false;
   }
 
   private void closeClientConnection(short src, short dest) {
 
-    Connection connection = connectionManager.getConnection(src, dest);
+    Connection connection = connectionManager.getConnection(destAddress, src, dest);
 
-    while (!connectionManager.getConnection(src, dest).isClientSentACK()) {
+    while (!connectionManager.getConnection(destAddress, src, dest).isClientSentACK()) {
 
       // Initial FIN Packet
       RxPPacket rxpPacketFIN = connectionManager.getNextClosePacket(connection);
-      connectionManager.updateConnection(rxpPacketFIN);
+      connectionManager.updateConnection(destAddress, rxpPacketFIN);
 
       // Send FIN Packet, will be ACK'd within send
-      this.sendRxPPackets(new RxPPacket[] { rxpPacketFIN });
+      if (!this.sendRxPPackets(new RxPPacket[] { rxpPacketFIN })) {
+        // The peer is gone and will never answer
+        this.endpoint.close();
+        return;
+      }
 
       // Receive FIN, send ACK
       try {
@@ -257,56 +585,125 @@ public class RxPSocket {
       } catch (IOException ioe) {
       }
 
-      if (connectionManager.getConnection(src, dest).isClientSentACK()) {
-        this.dgSocket.close();
+      if (connectionManager.getConnection(destAddress, src, dest).isClientSentACK()) {
+        this.endpoint.close();
         // // System.out.println("Closed Socket");
       }
     }
   }
 
-  private class ResendTimerTask extends TimerTask {
-    private int oldestUnackedPointer;
-    private int windowSize;
-    private RxPPacket[] sendBuffer;
-    private int numTimesSilent = 0;
+  private class ResendTimerTask {
+    private SendWindow sendWindow;
+    private SendPipeline pipeline; // Failed if the peer goes quiet, if set
+    private volatile long lastResponseNanos = System.nanoTime();
+
+    // The next firing, and its number. restart() and cancel() move the
+    // number on, so a firing already under way can tell it is stale and
+    // must not schedule another. Guarded by this.
+    private ScheduledFuture<?> pending;
+    private long firing = 0;
+    private boolean cancelled = false;
 
-    public ResendTimerTask(int oldestUnackedPointer, int windowSize, RxPPacket[] sendBuffer) {
-      this.oldestUnackedPointer = oldestUnackedPointer;
-      this.windowSize = windowSize;
-      this.sendBuffer = sendBuffer;
+    public ResendTimerTask(SendWindow sendWindow) {
+      this(sendWindow, null);
     }
 
-    public boolean incrementOldestUnackedPointer() {
-      numTimesSilent = 0;
-      if (oldestUnackedPointer < sendBuffer.length) {
-        oldestUnackedPointer++;
-        return true;
+    public ResendTimerTask(SendWindow sendWindow, SendPipeline pipeline) {
+      this.sendWindow = sendWindow;
+      this.pipeline = pipeline;
+    }
+
+    // (Re)arms the timer so it fires one retransmission timeout from now.
+    // Any pending firing is dropped.
+    public synchronized void restart() {
+      this.cancelled = false;
+      schedule();
+    }
+
+    public synchronized void cancel() {
+      cancelled = true;
+      firing++;
+      if (pending != null) {
+        pending.cancel(false);
+        pending = null;
       }
-      return false;
     }
 
-    public int getNumTimesNoResponse() {
-      return numTimesSilent;
+    // Replaces any pending firing with one a retransmission timeout from
+    // now. The caller holds this.
+    private void schedule() {
+      if (pending != null) {
+        pending.cancel(false);
+      }
+      long number = ++firing;
+      pending = RetransmitScheduler.getInstance().schedule(() -> fire(number),
+          rttEstimator.getRetransmitTimeout());
+    }
+
+    public long getMillisNoResponse() {
+      return (System.nanoTime() - lastResponseNanos) / 1000000;
     }
 
     public void resetTimesNoResponse() {
-      numTimesSilent = 0;
+      lastResponseNanos = System.nanoTime();
     }
 
-    public void run() {
+    private void fire(long number) {
+
+      // Holding the window while sending stops the sending thread from
+      // releasing, and reusing, a packet's buffer halfway through. ACKs
+      // restart the timer while holding it too, so they cannot slip in
+      // between the checks below and the resend.
+      synchronized (sendWindow) {
+
+        // Everything was ACKed just as the timer fired
+        if (sendWindow.isDrained()) {
+          return;
+        }
+
+        // Nobody is reading to notice a dead peer, so the timer does
+        if (pipeline != null && getMillisNoResponse() >= CONNECTION_TIMEOUT_MILLIS) {
+          pipeline.fail(new IOException("No response for " + CONNECTION_TIMEOUT_MILLIS + " ms"));
+          return;
+        }
+
+        synchronized (this) {
+          // Restarted or cancelled since this firing was scheduled
+          if (cancelled || number != firing) {
+            return;
+          }
+
+          // The timeout expired, so wait twice as long before the next one
+          rttEstimator.backOff();
+          schedule();
+        }
 
-      Connection connection = connectionManager.getConnection(sendBuffer[0]);
+        // Nothing is outstanding because the receiver has no room. Probe it
+        // so we hear when it opens up again, without treating it as a loss.
+        if (sendWindow.isPeerWindowClosed()) {
+          sendPackets(sendWindow.takeWindowProbe());
+          return;
+        }
 
-      // // System.out.println("Resending " + Math.min(windowSize, sendBuffer.length-oldestUnackedPointer) + " packets");
-      numTimesSilent++;
+        // Resend the packets the receiver has not reported holding, as far
+        // as the (now reduced) congestion window allows.
+        sendWindow.timeout();
+        sendPackets(sendWindow.takePacketsToSend());
+      }
+    }
+  }
 
-      // Send all unsent packets
-      for (int i = 0; i < windowSize && i < sendBuffer.length-oldestUnackedPointer; i++) {
+  // Called from both the sending thread and the retransmit timer, so the
+  // one DatagramPacket it reuses is guarded.
+  private void sendPackets(List<RxPPacket> packets) {
+    synchronized (sendDatagram) {
+      sendDatagram.setAddress(endpoint.getInetAddress());
+      sendDatagram.setPort(endpoint.getPort());
+      for (RxPPacket packet : packets) {
         try {
-          DatagramPacket dg = sendBuffer[i+oldestUnackedPointer].asDatagramPacket();
-          dg.setAddress(dgSocket.getInetAddress());
-          dg.setPort(dgSocket.getPort());
-          dgSocket.send(dg);
+          piggybackDelayedACK(packet);
+          packet.toDatagramPacket(sendDatagram);
+          endpoint.send(sendDatagram);
         } catch(IOException e) {
           // ACtually do not care. Timer will requeue these.
         }
@@ -314,208 +711,708 @@ public class RxPSocket {
     }
   }
 
-  // Application sends a buffer, send creates RxPPacket from buffer then...
-  // TODO: send window of packets
+  // Marks every range the receiver reported holding out of order. Returns
+  // true if any of it is newly reported.
+  private boolean applySACKBlocks(SendWindow sendWindow, RxPPacket ackPacket) {
+    boolean news = false;
+    int blocks = Math.min(ackPacket.getSACKBlockCount(), RxPPacket.MAX_SACK_BLOCKS);
+    for (int i = 0; i < blocks; i++) {
+      news |= sendWindow.selectiveAcknowledge(ackPacket.getSACKBlockStart(i), ackPacket.getSACKBlockEnd(i));
+    }
+    return news;
+  }
+
+  // Applies a data ACK to sendWindow: its SACK blocks, the peer's window
+  // and the cumulative ACK, which moves the window or counts as a
+  // duplicate. Re-arms the timer to match, and sends whatever that made
+  // room for or presumed lost. An ACK riding on data says nothing about
+  // loss, so countDuplicate is false for it. Returns true if the window
+  // moved. The caller holds sendWindow's lock.
+  private boolean applyDataACK(SendWindow sendWindow, ResendTimerTask resendTask,
+      RxPPacket ackPacket, boolean countDuplicate) {
+    boolean sacked = applySACKBlocks(sendWindow, ackPacket);
+    applyPeerWindow(sendWindow, ackPacket);
+
+    int ackNumber = ackPacket.getACKNum();
+    boolean moved = sendWindow.acknowledge(ackNumber);
+
+    // Only news shows the peer is getting our data. A stale ACK repeated
+    // forever must not keep a stuck send alive, though a full receiver
+    // answering our window probes is still there.
+    if (moved || sacked || sendWindow.isPeerWindowClosed()) {
+      resendTask.resetTimesNoResponse();
+    }
+
+    if (moved) {
+      // Stop the timer once nothing is left
+      if (sendWindow.isDrained()) {
+        resendTask.cancel();
+      } else {
+        resendTask.restart();
+      }
+    } else if (countDuplicate && sendWindow.duplicateAcknowledge(ackNumber)) {
+      // The receiver is still missing the oldest packet, which goes again
+      // below
+      resendTask.restart();
+    }
+
+    // Either kind of ACK may have made room in the window
+    sendPackets(sendWindow.takePacketsToSend());
+    return moved;
+  }
+
+  // Application sends a buffer as one message and waits until the receiver
+  // has all of it. The message is written through the same stream
+  // getOutputStream() returns.
   public boolean send(byte[] sendBuffer) {
+    try {
+      awaitCompletion(sendAsync(sendBuffer));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
 
-    this.isClientSending = true;
-    int oldestUnackedPointer = 0;
-    boolean PSH_ACKsent = false;
+  // Sends a buffer as one message without waiting for its ACKs, so the
+  // next can follow straight behind it. Blocks only while the send window
+  // is full. The future completes once the receiver has the whole message,
+  // in the order the messages were sent, or fails if the peer stops
+  // answering.
+  public CompletableFuture<Void> sendAsync(byte[] sendBuffer) {
+    RxPOutputStream out = new RxPOutputStream();
+    try {
+      out.write(sendBuffer);
+    } catch (IOException e) {
+      // The stream keeps the error and fails the message with it
+    }
+    return out.endMessage();
+  }
+
+  // Blocks until every message sent so far has been acknowledged.
+  public void flush() throws IOException {
+    SendPipeline pipeline = sendPipeline;
+    if (pipeline != null) {
+      awaitCompletion(pipeline.completion(nextSendSeqNum - 1));
+    }
+  }
 
-    int packetBufferLength = (int) Math.ceil((double) (sendBuffer.length) / RxPPacket.DEFAULT_PACKET_SIZE);
+  // Starts a new outgoing message. Bytes written are packetized as they
+  // come and sent as the window opens, and closing the stream ends the
+  // message. Writes block while sendBufferSize packets are unacknowledged,
+  // so memory stays bounded whatever the message size. Only one message
+  // is written at a time; the next stream waits for this one to close.
+  public OutputStream getOutputStream() {
+    return new RxPOutputStream();
+  }
 
-    // Set a receive timeout so we can resend after a time, rather
-    // than just having it block
-    int timeoutMillis = 300;
+  // The same as getOutputStream(), for callers working with NIO buffers.
+  public WritableByteChannel getWritableChannel() {
+    return Channels.newChannel(getOutputStream());
+  }
+
+  // Sets how many unacknowledged packets outgoing messages may hold. Takes
+  // effect once everything already sent is acknowledged.
+  public void setSendBufferSize(int sendBufferSize) {
+    this.sendBufferSize = Math.max(1, sendBufferSize);
+  }
+
+  // Waits for a message's future and rethrows its failure.
+  private static void awaitCompletion(CompletableFuture<Void> completion) throws IOException {
     try {
-      dgSocket.setSoTimeout(timeoutMillis);
-    } catch(SocketException se) {
-      // TODO: Add error handling
+      completion.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for ACKs");
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
     }
+  }
 
-    RxPPacket[] packetBuffer = new RxPPacket[packetBufferLength];
-    // Create payload for each RxPPacket based on default packet size
-    for (int i = 0; i < packetBuffer.length; i += 1) {
-      byte[] payload = Arrays.copyOfRange(sendBuffer, i*RxPPacket.DEFAULT_PACKET_SIZE,
-            (i+1)*RxPPacket.DEFAULT_PACKET_SIZE);
+  // The pipeline the next message goes into. A new one, carrying on from
+  // the next sequence number, replaces one that, once idle, is sized for a
+  // different send buffer. Only called by the message writer.
+  //
+  // Once a message has failed the connection has too: the receiver may
+  // still be waiting for the rest of it, and would only hold every later
+  // packet behind the gap.
+  private SendPipeline openSendPipeline() throws IOException {
+    SendPipeline pipeline = sendPipeline;
+    IOException failure = pipeline == null ? null : pipeline.getFailure();
+    if (failure != null) {
+      throw new IOException("An earlier message failed", failure);
+    }
+    if (pipeline == null || !pipeline.isReusable()) {
+      pipeline = new SendPipeline(nextSendSeqNum);
+      sendPipeline = pipeline;
+    }
+    return pipeline;
+  }
 
-      short src = (short) dgSocket.getLocalPort();
-      short dest = (short) dgSocket.getPort();
-      int seqNum = i+1;
-      int ackNum = -2;
-      boolean fin = false;
-      boolean syn = false;
-      boolean ack = false;
-      boolean psh = (i == packetBuffer.length - 1) ? true : false;
-      RxPPacket newPacket = new RxPPacket(src,
-                                          dest,
-                                          seqNum,
-                                          ackNum,
-                                          fin,
-                                          syn,
-                                          ack,
-                                          psh);
-      newPacket.setPayload(payload);
-      newPacket.setChecksum(newPacket.calculateChecksum());
+  // Fails whatever is still in flight and stops taking its ACKs.
+  private void abandonSends(IOException reason) {
+    SendPipeline pipeline = sendPipeline;
+    if (pipeline != null) {
+      pipeline.fail(reason);
+    }
+  }
+
+  private class RxPOutputStream extends OutputStream {
+    private SendPipeline pipeline;
 
-      packetBuffer[i] = newPacket;
+    // Bytes waiting to fill the next packet. A full packet is held back
+    // until more data arrives, so the last one can still get PSH on close.
+    private byte[] pending = new byte[payloadSize];
+    private int pendingLength = 0;
+
+    private CompletableFuture<Void> completion; // Set once the message ends
+    private IOException error;
+    private boolean firstPacket = true;
+
+    public RxPOutputStream() {
+      messageWriter.acquireUninterruptibly();
     }
 
-    // The timer task is charged with resending all packets in the window
-    // every time it is fired. It needs to be encapsulated in a class because
-    // Async tasks need to work on constants, not variables.
-    Timer timer = new Timer();
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
 
-    // Resend the current data every 300ms there is not an ACKed packet.
-    ResendTimerTask resendTask = new ResendTimerTask(oldestUnackedPointer, windowSize, packetBuffer);
-    timer.scheduleAtFixedRate(resendTask, 0, timeoutMillis);
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (completion != null) {
+        throw new IOException("Stream closed");
+      }
+      if (error != null) {
+        throw error;
+      }
+
+      try {
+        while (len > 0) {
+          if (pendingLength == pending.length) {
+            sendPending(false);
+          }
+          int n = Math.min(len, pending.length - pendingLength);
+          System.arraycopy(b, off, pending, pendingLength, n);
+          pendingLength += n;
+          off += n;
+          len -= n;
+        }
+      } catch (IOException e) {
+        error = e;
+        throw e;
+      }
+    }
 
-    // TODO: 2) Set Window Size
-    byte[] packetPayload = new byte[RxPPacket.DEFAULT_PACKET_SIZE];
-    DatagramPacket dgPacket = new DatagramPacket(packetPayload, packetPayload.length);
+    // Ends the message and blocks until the receiver has all of it.
+    public void close() throws IOException {
+      awaitCompletion(endMessage());
+    }
+
+    // Ends the message without waiting for its ACKs, so the next message
+    // can be written. Returns the message's completion.
+    public CompletableFuture<Void> endMessage() {
+      if (completion != null) {
+        return completion;
+      }
 
-    while (true) {
       try {
-        // Wait for the ACK
-        dgSocket.receive(dgPacket);
+        if (error != null) {
+          throw error;
+        }
+        sendPending(true);
+        completion = pipeline.completion(nextSendSeqNum - 1);
+      } catch (IOException e) {
+        completion = CompletableFuture.failedFuture(e);
+      } finally {
+        messageWriter.release();
+      }
+      return completion;
+    }
 
-        resendTask.resetTimesNoResponse();
-        RxPPacket rxpPacket = new RxPPacket(dgPacket);
+    // Packetizes whatever is pending and queues it, waiting for ACKs while
+    // the window is full.
+    private void sendPending(boolean psh) throws IOException {
+      if (pipeline == null) {
+        pipeline = openSendPipeline();
+      }
 
-        if (!rxpPacket.isSYN() && rxpPacket.isACK()) {
+      short src = (short) endpoint.getLocalPort();
+      short dest = (short) endpoint.getPort();
+      // Never reuse a sequence number, even for a message that failed
+      int seqNum = nextSendSeqNum++;
 
-          int ackNumber = rxpPacket.getACKNum();
-          int expectedAckNumber = packetBuffer[oldestUnackedPointer].getSeqNum();
-          // // System.out.println("ACK Received: " + ackNumber);
+      // An answer to what we just received, so its ACK can wait for the
+      // next one
+      if (firstPacket && System.nanoTime() - lastMessageReceivedNanos < DELAYED_ACK_MILLIS * 1000000) {
+        interactive = true;
+      }
+      firstPacket = false;
 
-          // If the ACK is equal to the oldest unACKed packet, move the index by one
-          // Otherwise, wait until it comes OR timeout occurs.
-          if (oldestUnackedPointer < packetBuffer.length &&
-              ackNumber == expectedAckNumber) {
-            oldestUnackedPointer++;
-            boolean success = resendTask.incrementOldestUnackedPointer();
+      int ackNum = -2;
 
-            // Reset timer
-            timer.cancel();
-            timer.purge();
-            timer = new Timer();
-            resendTask = new ResendTimerTask(oldestUnackedPointer, windowSize, packetBuffer);
-            timer.scheduleAtFixedRate(resendTask, timeoutMillis, timeoutMillis);
-          }
+      // The packet is encoded once into a pooled buffer and stays there,
+      // for any retransmissions, until the send window releases it on ACK
+      RxPPacket newPacket = packetPool.acquire();
+      newPacket.setSrcPort(src);
+      newPacket.setDestPort(dest);
+      newPacket.setSeqNum(seqNum);
+      newPacket.setACKNum(ackNum);
+      newPacket.setPSH(psh);
+      newPacket.setPayload(pending, 0, pendingLength);
+      newPacket.setIntegrity(integrityMode);
+      newPacket.setChecksum(newPacket.calculateChecksum());
+      pendingLength = 0;
 
-          if (rxpPacket.isPSH() && ackNumber == expectedAckNumber) {
-            // If the received packet is a PSH+ACK, then send a PSH+ACK and quit.
-            RxPPacket ackRxPPacket = new RxPPacket();
-            ackRxPPacket.setACK(true);
-            ackRxPPacket.setACKNum(rxpPacket.getACKNum()+1);
-            ackRxPPacket.setSeqNum(rxpPacket.getACKNum()+1);
-            ackRxPPacket.setDestPort((short)dgPacket.getPort());
-            ackRxPPacket.setSrcPort((short)dgSocket.getLocalPort());
-            ackRxPPacket.setPSH(true);
-            ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
-
-            // Send ACK+PSH
-            DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-            dg.setAddress(dgPacket.getAddress());
-            dg.setPort(dgPacket.getPort());
-            dgSocket.send(dg);
-            // // System.out.println("Sending PSH+ACK");
-            timer.cancel();
-            timer.purge();
-            resendTask.cancel();
-            this.isClientSending = false;
-            return true;
+      pipeline.offer(newPacket);
+    }
+  }
+
+  // Carries outgoing messages back to back over one send window. Its ACKs
+  // are applied on the engine thread as they arrive (see
+  // handleOnArrival()), so the window moves whether or not anyone is
+  // reading, and each
+  // message's future completes once the receiver has ACKed its last
+  // packet. The last packet of every message carries PSH, which is how the
+  // receiver finds where one message ends and the next begins.
+  private class SendPipeline {
+    private SendWindow sendWindow;
+    private ResendTimerTask resendTask;
+    private int capacity;
+
+    // Messages not yet fully ACKed, oldest first. Guarded by sendWindow.
+    private ArrayDeque<MessageCompletion> unacknowledged = new ArrayDeque<>();
+    private IOException failure;
+
+    public SendPipeline(int firstSeqNum) {
+      this.capacity = sendBufferSize;
+      this.sendWindow = new SendWindow(capacity, firstSeqNum, peerWindow, rttEstimator,
+          congestionController, packetPool);
+
+      // The timer task is charged with resending every packet in the window
+      // the receiver has not reported each time it is fired. It runs on the
+      // shared RetransmitScheduler thread, so re-arming it is cheap.
+      this.resendTask = new ResendTimerTask(sendWindow, this);
+    }
+
+    // False once idle and sized for a different send buffer.
+    public boolean isReusable() {
+      synchronized (sendWindow) {
+        return capacity == sendBufferSize || !sendWindow.isDrained();
+      }
+    }
+
+    // Why everything outstanding was given up on, or null.
+    public IOException getFailure() {
+      synchronized (sendWindow) {
+        return failure;
+      }
+    }
+
+    // True if packets are queued waiting for the window to open.
+    public boolean isBacklogged() {
+      return sendWindow.hasUnsent();
+    }
+
+    // Queues a data packet and sends whatever the window allows, blocking
+    // while the window is full.
+    public void offer(RxPPacket packet) throws IOException {
+      synchronized (sendWindow) {
+        boolean idle = sendWindow.isDrained();
+        while (failure == null && !sendWindow.offer(packet)) {
+          try {
+            sendWindow.wait();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the send window");
           }
         }
-      } catch(IOException e) {
-        // System.err.println("Received Nothing " + resendTask.getNumTimesNoResponse() + " Times");
-        if (resendTask.getNumTimesNoResponse() == 40) {
-          timer.cancel();
-          timer.purge();
-          resendTask.cancel();
-          this.isClientSending = false;
+        if (failure != null) {
+          throw failure;
+        }
+
+        // Resend the missing data whenever a retransmission timeout passes
+        // without an ACKed packet. Time spent idle is not silence.
+        if (idle) {
+          resendTask.resetTimesNoResponse();
+          resendTask.restart();
+        }
+        sendPackets(sendWindow.takePacketsToSend());
+      }
+    }
+
+    // Returns a future that completes once everything up to lastSeqNum has
+    // been ACKed.
+    public CompletableFuture<Void> completion(int lastSeqNum) {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      synchronized (sendWindow) {
+        if (failure != null) {
+          future.completeExceptionally(failure);
+        } else if (sendWindow.getOldestUnackedSeqNum() > lastSeqNum) {
+          future.complete(null);
+        } else {
+          unacknowledged.add(new MessageCompletion(lastSeqNum, future));
+        }
+      }
+      return future;
+    }
+
+    // Takes and applies a data ACK, already checked intact, while anything
+    // is outstanding. Returns false for anything else, including ACKs once
+    // all is ACKed, e.g. those of a close. Data may carry an ACK as well;
+    // that is applied too, but false is returned so the data is still read.
+    public boolean onACK(RxPPacket rxpPacket, DatagramPacket dgPacket) {
+      boolean piggybacked = rxpPacket.isPiggybackedACK();
+      if (rxpPacket.isSYN() || rxpPacket.isFIN()
+          || (!piggybacked && (!rxpPacket.isACK() || rxpPacket.getSeqNum() != 0))) {
+        return false;
+      }
+
+      int ackNumber = rxpPacket.getACKNum();
+      List<MessageCompletion> done = new ArrayList<>();
+      synchronized (sendWindow) {
+        if (failure != null || sendWindow.isDrained()) {
           return false;
         }
+        // // System.out.println("ACK Received: " + ackNumber);
+        if (applyDataACK(sendWindow, resendTask, rxpPacket, !piggybacked)) {
+          sendWindow.notifyAll();
+        }
+
+        int acked = sendWindow.getOldestUnackedSeqNum();
+        while (!unacknowledged.isEmpty() && unacknowledged.peek().lastSeqNum < acked) {
+          done.add(unacknowledged.poll());
+        }
+      }
+
+      // The receiver echoes PSH once it has a whole message. Confirm it, so
+      // it can leave TIME_WAIT.
+      if (!piggybacked && rxpPacket.isPSH() && !done.isEmpty()
+          && done.get(done.size() - 1).lastSeqNum == ackNumber) {
+        try {
+          sendEndConfirmation(ackNumber, dgPacket);
+        } catch (IOException e) {
+          // The receiver's TIME_WAIT runs out on its own
+        }
+      }
+
+      // Outside the lock, since whatever waits on them may send again
+      for (MessageCompletion message : done) {
+        message.future.complete(null);
+      }
+      return !piggybacked;
+    }
+
+    // Gives up on everything outstanding.
+    public void fail(IOException reason) {
+      List<MessageCompletion> abandoned;
+      synchronized (sendWindow) {
+        if (failure != null) {
+          return;
+        }
+        failure = reason;
+        resendTask.cancel();
+        abandoned = new ArrayList<>(unacknowledged);
+        unacknowledged.clear();
+        sendWindow.notifyAll();
+      }
+
+      for (MessageCompletion message : abandoned) {
+        message.future.completeExceptionally(reason);
       }
     }
   }
 
+  // A message in a SendPipeline, and what to tell once it is all ACKed.
+  private static class MessageCompletion {
+    private final int lastSeqNum;
+    private final CompletableFuture<Void> future;
+
+    public MessageCompletion(int lastSeqNum, CompletableFuture<Void> future) {
+      this.lastSeqNum = lastSeqNum;
+      this.future = future;
+    }
+  }
+
+  // Answers the receiver's PSH+ACK for a whole message with a PSH+ACK of
+  // our own, numbered one past the message's last packet.
+  private void sendEndConfirmation(int ackNumber, DatagramPacket dgPacket) throws IOException {
+    RxPPacket ackRxPPacket = new RxPPacket();
+    ackRxPPacket.setACK(true);
+    ackRxPPacket.setACKNum(ackNumber + 1);
+    ackRxPPacket.setSeqNum(ackNumber + 1);
+    ackRxPPacket.setDestPort((short)dgPacket.getPort());
+    ackRxPPacket.setSrcPort((short)endpoint.getLocalPort());
+    ackRxPPacket.setPSH(true);
+    ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
+
+    // Send ACK+PSH
+    DatagramPacket dg = ackRxPPacket.asDatagramPacket();
+    dg.setAddress(dgPacket.getAddress());
+    dg.setPort(dgPacket.getPort());
+    endpoint.send(dg);
+    // // System.out.println("Sending PSH+ACK");
+  }
+
+  // Receives one message. Returns null if the peer closed the connection
+  // instead, and an empty message if nothing arrived for
+  // getReceiveIdleMillis(). Throws SocketTimeoutException if the message
+  // stopped arriving part way through.
   public byte[] receive() throws IOException {
-    int expectedSeqNum = 1; // Initial Number
+    RxPInputStream in = new RxPInputStream();
+    MessageBuffer receivedBytes = new MessageBuffer();
+    in.readFully(receivedBytes);
 
-    boolean PSH_ACKsent = false;
-    int receiveAttempts = 0;
+    if (in.isClosedByPeer()) {
+      return null;
+    }
+    return receivedBytes.toByteArray();
+  }
 
-    int timeoutMillis = 300;
-    try {
-      dgSocket.setSoTimeout(timeoutMillis);
-    } catch(SocketException se) {
-      // TODO: Add error handling
+  // Receives the next message as a stream. Each packet's data can be read
+  // as soon as it and everything before it has arrived, and the stream
+  // ends once the sender confirms the end of the message. Data left unread
+  // shrinks the window we advertise.
+  public InputStream getInputStream() {
+    return new RxPInputStream();
+  }
+
+  // The same as getInputStream(), for callers working with NIO buffers.
+  public ReadableByteChannel getReadableChannel() {
+    return Channels.newChannel(getInputStream());
+  }
+
+  private class RxPInputStream extends InputStream {
+    private final int firstSeqNum = nextReceiveSeqNum;
+    private int expectedSeqNum = firstSeqNum;
+
+    private boolean PSH_received = false;
+
+    private DatagramPacket dgPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+    private RxPPacket packetView = new RxPPacket(); // Reused for every datagram received
+
+    // In-order packets the application has not read yet, and the one it
+    // is reading now. Data is copied out of the packets as it is read.
+    private ArrayDeque<RxPPacket> delivered = new ArrayDeque<>();
+    private RxPPacket current;
+    private int currentPosition = 0;
+
+    private boolean started = false;
+    private boolean ended = false;
+    private boolean closedByPeer = false;
+
+    public RxPInputStream() {
+
+      // Nothing is retransmitted from here, so just wait for the next packet
+      try {
+        endpoint.setSoTimeout((int) getReceiveIdleMillis());
+      } catch(SocketException se) {
+        // TODO: Add error handling
+      }
+
+      // The buffer may already hold packets of this message, sent straight
+      // behind the last one and SACKed, so the sender will not resend them.
+      // It is only resized while empty.
+      if (reorderBuffer.getCapacity() != windowSize && reorderBuffer.size() == 0) {
+        reorderBuffer = new ReorderBuffer(windowSize, packetPool);
+      }
+      unreadPackets = 0;
     }
 
-    List<RxPPacket> tempRxPPacketList = new ArrayList<>();
-    DatagramPacket dgPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-    // Receive until PSH flag is set or timeout occurs
-    while (true) {
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+
+      // Receive until there is data to return, or the message is over
+      while (available() == 0) {
+        RxPPacket next = nextPacket();
+        if (next == null) {
+          return -1;
+        }
+        packetPool.release(current);
+        current = next;
+        currentPosition = 0;
+      }
+
+      int n = Math.min(len, available());
+      current.copyPacketData(currentPosition, b, off, n);
+      currentPosition += n;
+      return n;
+    }
+
+    // Reads the rest of the message into buffer, copying each payload
+    // straight from its packet.
+    public void readFully(MessageBuffer buffer) throws IOException {
+      if (available() > 0) {
+        buffer.append(current, currentPosition);
+        currentPosition = current.getPayloadLength();
+      }
+
+      RxPPacket next;
+      while ((next = nextPacket()) != null) {
+        buffer.append(next);
+        packetPool.release(next);
+      }
+    }
+
+    // Takes the next in-order packet, receiving until one arrives. Returns
+    // null once the message is over.
+    private RxPPacket nextPacket() throws IOException {
+      while (true) {
+        RxPPacket next = delivered.poll();
+        if (next != null) {
+          unreadPackets--;
+          return next;
+        } else if (ended) {
+          return null;
+        } else if (!started) {
+          if (receiveBroken) {
+            throw new SocketException("An earlier message was cut short");
+          }
+          started = true;
+          ended = !receiveHeld();
+        } else {
+          ended = !receiveNext();
+          if (ended) {
+            unreadPackets = 0;
+          }
+        }
+      }
+    }
+
+    public int available() {
+      return current == null ? 0 : current.getPayloadLength() - currentPosition;
+    }
+
+    public boolean isClosedByPeer() {
+      return closedByPeer;
+    }
+
+    // Queues a packet for the reader. It must not be a view over the
+    // receive buffer.
+    private void deliver(RxPPacket packet) {
+      delivered.add(packet);
+      unreadPackets++;
+    }
+
+    // Delivers the packets held in the reorder buffer from expectedSeqNum
+    // on, stopping at the end of this message, since the packets behind it
+    // belong to the next. Returns true if there were any.
+    private boolean deliverHeld() {
+      boolean delivered = false;
+      RxPPacket bufferedRxPPacket;
+      while (!PSH_received && (bufferedRxPPacket = reorderBuffer.poll(expectedSeqNum)) != null) {
+        deliver(bufferedRxPPacket);
+        expectedSeqNum = bufferedRxPPacket.getSeqNum() + 1;
+        PSH_received = bufferedRxPPacket.isPSH();
+        delivered = true;
+      }
+      return delivered;
+    }
+
+    // Takes whatever of this message arrived while the last one was still
+    // being received, and ACKs it, since it may be all of it. Returns false
+    // if it was.
+    private boolean receiveHeld() throws IOException {
+      if (!deliverHeld()) {
+        return true;
+      }
+
+      if (PSH_received) {
+        acknowledgeMessage(expectedSeqNum, endpoint.getInetAddress(), endpoint.getPort());
+        return false;
+      }
+      sendDataACK(expectedSeqNum, false, endpoint.getInetAddress(), endpoint.getPort());
+      return true;
+    }
+
+    // Receives and handles one datagram. Returns false once the message is
+    // over, because the sender confirmed its end, the connection closed or
+    // nothing of it arrived for getReceiveIdleMillis().
+    private boolean receiveNext() throws IOException {
       // Receive Datagram from Datagram Socket
       try {
-        dgSocket.receive(dgPacket);
+        endpoint.receive(dgPacket);
       } catch (SocketTimeoutException ste) {
-        receiveAttempts++;
-        if (receiveAttempts > 20) {
-          break;
-        }
-        else {
-          continue;
+        if (expectedSeqNum == firstSeqNum) {
+          return false;
         }
+        // What we have is not the whole message, and must not pass for it
+        receiveBroken = true;
+        throw new SocketTimeoutException("Message cut short after " + (expectedSeqNum - firstSeqNum) + " packets");
       }
-      receiveAttempts = 0;
 
       // Create RxPPacket from received Datagram Buffer
-      RxPPacket receivedRxPPacket = new RxPPacket(dgPacket.getData());
+      RxPPacket receivedRxPPacket = packetView.wrap(dgPacket);
 
-      // Check the checksum to make sure no corruption occurred
-      long checksum = receivedRxPPacket.getChecksum();
-      long currentChecksum = receivedRxPPacket.calculateChecksum();
+      // Check the checksum to make sure no corruption occurred. The length
+      // fields cannot be trusted, and the connection must not be updated,
+      // until it passes.
+      if (!isIntact(receivedRxPPacket)) {
+        // System.out.println("Packet Corrupted");
+        return true;
+      }
 
-      boolean updateConnection = connectionManager.updateConnection(receivedRxPPacket);
+      if (answerTimeWait(receivedRxPPacket, dgPacket)) {
+        return true;
+      }
+
+      boolean updateConnection = connectionManager.updateConnection(destAddress, receivedRxPPacket);
       // // System.out.println("Expected: " + expectedSeqNum + "\tReceived: " + receivedRxPPacket.getSeqNum());
       // // System.out.println("FIN: " + receivedRxPPacket.isFIN());
       // // System.out.println("Update Connection: " + updateConnection);
 
-      if (currentChecksum != checksum) {
-        // // System.out.println("Packet Corrupted");
-        continue;
-      } else if (connectionManager.isTerminatePacket(receivedRxPPacket)) {
+      if (connectionManager.isTerminatePacket(receivedRxPPacket)) {
 
         // // System.out.println("Terminate");
 
         // ACK & call close()
 
-      } else if (!connectionManager.getConnection(receivedRxPPacket).isAllowedToSendData() && updateConnection) {
+      } else if (!connectionManager.getConnection(destAddress, receivedRxPPacket).isAllowedToSendData() && updateConnection) {
         // System.out.println("Update Connection: " + true);
         // If the client is still waiting for the fifth handshake, process that instead.
-        Connection connection = connectionManager.getConnection(receivedRxPPacket);
+        Connection connection = connectionManager.getConnection(destAddress, receivedRxPPacket);
         // System.out.println("Received Handshake Request: " + connection.connectionStateToString());
         sendHandshakePacket(receivedRxPPacket.getDestPort(), receivedRxPPacket.getSrcPort(),
             dgPacket, false);
       }
       else if (expectedSeqNum < receivedRxPPacket.getSeqNum()) {
-        // System.out.println("Packet Out of Order");
+        // Hold early data packets until the gap in front of them fills, and
+        // tell the sender which ones we have so it only resends the gap.
+        if (!receivedRxPPacket.isACK()) {
+          reorderBuffer.offer(expectedSeqNum, receivedRxPPacket, dgPacket);
+          sendDataACK(expectedSeqNum, false, dgPacket);
+        }
       }
-      else if (receivedRxPPacket.isPSH() && receivedRxPPacket.isACK() && PSH_ACKsent) {
+      else if (receivedRxPPacket.isPSH() && receivedRxPPacket.isACK()) {
         // System.out.println("PSH+ACK Received");
-        try {
-          Thread.sleep(2000); // Let any remaining packets in the air die
-        } catch (InterruptedException ie) {}
-        break;
+        // The sender confirming the end of the last message, which we
+        // already finished with
+        return true;
       }
       else {
 
         // Only add to the list if this is the right packet. ACK any other one.
-        if (expectedSeqNum == receivedRxPPacket.getSeqNum() && !receivedRxPPacket.isACK()) {
-          tempRxPPacketList.add(receivedRxPPacket);
+        // Hand it to the application straight away, unless the
+        // application has left a whole window unread.
+        boolean inOrder = false;
+        if (expectedSeqNum == receivedRxPPacket.getSeqNum() && !receivedRxPPacket.isACK()
+            && !receivedRxPPacket.isSYN() && unreadPackets < windowSize) {
+          // The packet keeps the datagram's buffer, and dgPacket gets a
+          // spare one, so the data is not copied
+          receivedRxPPacket = packetPool.take(dgPacket);
+          deliver(receivedRxPPacket);
           expectedSeqNum = receivedRxPPacket.getSeqNum() + 1;
+          PSH_received = PSH_received || receivedRxPPacket.isPSH();
+
+          // The packet may have filled a gap, so deliver whatever was
+          // waiting behind it.
+          inOrder = !deliverHeld() && reorderBuffer.size() == 0;
         }
         else {
           // if (!receivedRxPPacket.isACK())
@@ -527,300 +1424,423 @@ public class RxPSocket {
         if (receivedRxPPacket.isFIN() && !receivedRxPPacket.isSYN()) {
 
           // System.out.println("Received FIN: Close Connection");
-          ackRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(receivedRxPPacket));
+          ackRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(destAddress, receivedRxPPacket));
 
           // Send ACK
           DatagramPacket dg = ackRxPPacket.asDatagramPacket();
           dg.setAddress(dgPacket.getAddress());
           dg.setPort(dgPacket.getPort());
-          dgSocket.send(dg);
+          endpoint.send(dg);
 
           // System.out.println("Sending ACK in Response to FIN: " + ackRxPPacket.getACKNum());
 
-          connectionManager.updateConnection(ackRxPPacket);
+          connectionManager.updateConnection(destAddress, ackRxPPacket);
 
           // Send a FIN (if server, otherwise close)
-          if (!connectionManager.getConnection(ackRxPPacket).isClient()) {
+          if (!connectionManager.getConnection(destAddress, ackRxPPacket).isClient()) {
 
             // Server send FIN (Received FIN from Client and ACKd that FIN)
-            RxPPacket finRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(receivedRxPPacket));
+            RxPPacket finRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(destAddress, receivedRxPPacket));
 
             // send FIN
             dg = finRxPPacket.asDatagramPacket();
             dg.setAddress(dgPacket.getAddress());
             dg.setPort(dgPacket.getPort());
-            dgSocket.send(dg);
+            endpoint.send(dg);
 
             // System.out.println("Sending FIN to Client");
 
-            connectionManager.updateConnection(finRxPPacket);
+            connectionManager.updateConnection(destAddress, finRxPPacket);
 
           } else {
 
             // Client close (received FIN from Server)
-            this.dgSocket.close();
-            return null;
+            endpoint.close();
+            closedByPeer = true;
+            return false;
           }
         } else {
 
-          // Make an ACK
-          ackRxPPacket = new RxPPacket();
-          ackRxPPacket.setACK(true);
-          ackRxPPacket.setACKNum(receivedRxPPacket.getSeqNum());
-          ackRxPPacket.setDestPort((short)dgPacket.getPort());
-          ackRxPPacket.setSrcPort((short)dgSocket.getLocalPort());
-          if (receivedRxPPacket.isPSH()) {
-            ackRxPPacket.setPSH(true);
-            PSH_ACKsent = true;
-            // System.out.println("Sending PSH+ACK");
+          if (PSH_received) {
+            // The whole message is here. Answer any stragglers from
+            // TIME_WAIT and let the application have it now.
+            acknowledgeMessage(expectedSeqNum, dgPacket.getAddress(), dgPacket.getPort());
+            return false;
           }
-          ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
 
-          // Send ACK
-          DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-          dg.setAddress(dgPacket.getAddress());
-          dg.setPort(dgPacket.getPort());
-          dgSocket.send(dg);
-
-          // System.out.println("Sending ACK: " + ackRxPPacket.getACKNum());
-
-          connectionManager.updateConnection(ackRxPPacket);
+          // Send ACK, except that in-order data is ACKed every
+          // ackFrequency packets. A gap, a gap filled or a duplicate is
+          // news for the sender, so it is ACKed at once, as is anything
+          // once our window is too small for the sender to keep going.
+          if (inOrder && ++packetsUnacked < ackFrequency && getAdvertisedWindow() >= ackFrequency) {
+            ackRxPPacket = delayDataACK(expectedSeqNum, false, dgPacket.getAddress(), dgPacket.getPort());
+          } else {
+            ackRxPPacket = sendDataACK(expectedSeqNum, false, dgPacket);
+          }
 
           // When Client sends ack or server sends FIN remove connection or you could timeout
-          if (connectionManager.getConnection(ackRxPPacket).isClientSentACK()) {
-            // connectionManager.removeConnection(ackRxPPacket.getSrcPort(), ackRxPPacket.getDestPort());
-            return null;
+          if (connectionManager.getConnection(destAddress, ackRxPPacket).isClientSentACK()) {
+            // connectionManager.removeConnection(destAddress, ackRxPPacket.getSrcPort(), ackRxPPacket.getDestPort());
+            // Let go of the port, or for an accepted socket its place in
+            // the listener, so the peer can connect again
+            endpoint.close();
+            isConnected = false;
+            closedByPeer = true;
+            return false;
           }
         }
       }
+      return true;
     }
+  }
 
-    // If tempPackets pass all the tests (not dup, corrupt, out of order)
-    // give the application a byte buffer
-    List<Byte> receivedByteList = new ArrayList<>();
-    for (RxPPacket tempPacket : tempRxPPacketList) {
+  // Handles what the peer sends while the application is not sending or
+  // receiving: a terminate or FIN ending the connection. Blocks until a
+  // datagram arrives, so it can be called in a loop without spinning.
+  // Datagrams that arrive during a handshake or close, or while another
+  // thread holds this socket's lock (as FxAClient does around each request
+  // and its response), are left for that call. ACKs for messages we send
+  // never come here; their SendPipeline takes them as they arrive.
+  public void receiveInBackground() throws IOException {
 
-      // getPayload returns an array of bytes, add each byte to the byteList
-      for (int i = 0; i < tempPacket.getPacketData().length; i++) {
-        receivedByteList.add(tempPacket.getPacketData()[i]);
-      }
+    // Sleep until the peer sends something
+    try {
+      endpoint.awaitDatagram();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return;
     }
-
-    // Byte to byte ...
-    byte[] receivedBytes = new byte[receivedByteList.size()];
-    for (int i = 0; i < receivedBytes.length; i++) {
-      receivedBytes[i] = receivedByteList.get(i);
+    if (endpoint.isClosed()) {
+      throw new SocketException("Socket is closed");
     }
 
-    return receivedBytes;
+    synchronized (this) {
+      // A handshake or close in progress reads its own ACKs, so let it
+      // have them
+      while (isClientSending) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+
+      while (endpoint.poll(backgroundDatagram)) {
+        receiveControlPacket(backgroundDatagram);
+      }
+    }
   }
 
-  public byte[] receiveInBackground() throws IOException {
-    int expectedSeqNum = 1; // Initial Number
+  // Acts on a packet the peer sent outside of any send or receive. Only a
+  // terminate or a FIN means anything here; everything else is left over
+  // from an exchange that has already finished.
+  private void receiveControlPacket(DatagramPacket dgPacket) throws IOException {
 
-    boolean PSH_ACKsent = false;
-    int receiveAttempts = 0;
+    // Create RxPPacket from received Datagram Buffer
+    RxPPacket receivedRxPPacket = backgroundView.wrap(dgPacket);
 
-    int timeoutMillis = 50;
-    try {
-      dgSocket.setSoTimeout(timeoutMillis);
-    } catch(SocketException se) {
-      // TODO: Add error handling
+    // Check the checksum to make sure no corruption occurred. The length
+    // fields cannot be trusted, and the connection must not be updated,
+    // until it passes.
+    if (!isIntact(receivedRxPPacket)) {
+      // System.out.println("Packet Corrupted");
+      return;
     }
 
-    List<RxPPacket> tempRxPPacketList = new ArrayList<>();
-    DatagramPacket dgPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-    // Receive until PSH flag is set or timeout occurs
-    while ((this.isClient && !this.isClientSending) || (!this.isClient)) {
-      // Receive Datagram from Datagram Socket
-      try {
-        dgSocket.receive(dgPacket);
-      } catch (SocketTimeoutException ste) {
+    if (answerTimeWait(receivedRxPPacket, dgPacket)) {
+      return;
+    }
 
-        if (this.isClient && this.isClientSending) {
-          break;
-        }
+    connectionManager.updateConnection(destAddress, receivedRxPPacket);
 
-        receiveAttempts++;
-        if (receiveAttempts > 20) {
-          break;
-        }
-        else {
-          continue;
-        }
-      }
-      receiveAttempts = 0;
+    if (connectionManager.isTerminatePacket(receivedRxPPacket)) {
 
-      // Create RxPPacket from received Datagram Buffer
-      RxPPacket receivedRxPPacket = new RxPPacket(dgPacket.getData());
+      // System.out.println("Terminate");
 
-      // Check the checksum to make sure no corruption occurred
-      long checksum = receivedRxPPacket.getChecksum();
-      long currentChecksum = receivedRxPPacket.calculateChecksum();
+      // ACK & call close()
+      if (!receivedRxPPacket.isACK()) {
 
-      boolean updateConnection = connectionManager.updateConnection(receivedRxPPacket);
-      // System.out.println("Expected: " + expectedSeqNum + "\tReceived: " + receivedRxPPacket.getSeqNum());
-      // System.out.println("FIN: " + receivedRxPPacket.isFIN());
-      // System.out.println("Update Connection: " + updateConnection);
+        // Make an ACK
+        RxPPacket ackRxPPacket = new RxPPacket();
+        ackRxPPacket.setACK(true);
+        ackRxPPacket.setACKNum(receivedRxPPacket.getSeqNum());
+        ackRxPPacket.setDestPort((short)dgPacket.getPort());
+        ackRxPPacket.setSrcPort((short)endpoint.getLocalPort());
+        ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
 
-      if (currentChecksum != checksum) {
-        // System.out.println("Packet Corrupted");
-        continue;
-      } else if (connectionManager.isTerminatePacket(receivedRxPPacket)) {
+        // Send ACK
+        DatagramPacket dg = ackRxPPacket.asDatagramPacket();
+        dg.setAddress(dgPacket.getAddress());
+        dg.setPort(dgPacket.getPort());
+        endpoint.send(dg);
 
-        // System.out.println("Terminate");
+        // System.out.println("Sending ACK: " + ackRxPPacket.getACKNum());
 
-        // ACK & call close()
-        if (666 == receivedRxPPacket.getSeqNum() && !receivedRxPPacket.isACK()) {
+        // The peer is gone and will not answer a FIN, so just let go
+        peerClosed();
+      }
+    } else if (receivedRxPPacket.isFIN() && !receivedRxPPacket.isSYN()) {
 
-          // Make an ACK
-          RxPPacket ackRxPPacket = new RxPPacket();
-          ackRxPPacket.setACK(true);
-          ackRxPPacket.setACKNum(receivedRxPPacket.getSeqNum());
-          ackRxPPacket.setDestPort((short)dgPacket.getPort());
-          ackRxPPacket.setSrcPort((short)dgSocket.getLocalPort());
-          ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
+      // System.out.println("Received FIN: Close Connection");
+      RxPPacket ackRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(destAddress, receivedRxPPacket));
 
-          // Send ACK
-          DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-          dg.setAddress(dgPacket.getAddress());
-          dg.setPort(dgPacket.getPort());
-          dgSocket.send(dg);
+      // Send ACK
+      DatagramPacket dg = ackRxPPacket.asDatagramPacket();
+      dg.setAddress(dgPacket.getAddress());
+      dg.setPort(dgPacket.getPort());
+      endpoint.send(dg);
 
-          // System.out.println("Sending ACK: " + ackRxPPacket.getACKNum());
+      connectionManager.updateConnection(destAddress, ackRxPPacket);
 
-          this.close();
-        }
-      } else if (!connectionManager.isTerminatePacket(receivedRxPPacket)) {
+      peerClosed();
+    }
+  }
 
-        // if not terminate packet, break
-        break;
+  // Closes our end after the peer ended the connection, and tells the
+  // peer close listener, if any.
+  private void peerClosed() {
+    abandonSends(new IOException("Connection closed by peer"));
+    this.endpoint.close();
+    connectionManager.removeConnection(destAddress, this.srcPort, this.destPort);
+    this.isConnected = false;
+    Runnable listener = peerCloseListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
 
-      } else if (!connectionManager.getConnection(receivedRxPPacket).isAllowedToSendData() && updateConnection) {
-        // System.out.println("Update Connection: " + true);
-        // If the client is still waiting for the fifth handshake, process that instead.
-        Connection connection = connectionManager.getConnection(receivedRxPPacket);
-        // System.out.println("Received Handshake Request: " + connection.connectionStateToString());
-        sendHandshakePacket(receivedRxPPacket.getDestPort(), receivedRxPPacket.getSrcPort(),
-            dgPacket, false);
-      }
-      else if (expectedSeqNum < receivedRxPPacket.getSeqNum()) {
-        // System.out.println("Packet Out of Order");
-      }
-      else if (receivedRxPPacket.isPSH() && receivedRxPPacket.isACK() && PSH_ACKsent) {
-        // System.out.println("PSH+ACK Received");
-        try {
-          Thread.sleep(2000); // Let any remaining packets in the air die
-        } catch (InterruptedException ie) {}
-        break;
-      }
-      else {
+  // Called, on the thread running receiveInBackground(), when the peer
+  // terminates or closes the connection.
+  public void setPeerCloseListener(Runnable listener) {
+    this.peerCloseListener = listener;
+  }
 
-        // Only add to the list if this is the right packet. ACK any other one.
-        if (expectedSeqNum == receivedRxPPacket.getSeqNum() && !receivedRxPPacket.isACK()) {
-          tempRxPPacketList.add(receivedRxPPacket);
-          expectedSeqNum = receivedRxPPacket.getSeqNum() + 1;
-        }
-        else {
-          //if (!receivedRxPPacket.isACK())
-            // System.out.println("Packet Out of Order");
-        }
+  // Marks the end of a send and wakes a receiveInBackground() waiting on it.
+  private void clientSendingDone() {
+    synchronized (this) {
+      this.isClientSending = false;
+      notifyAll();
+    }
+  }
 
-        RxPPacket ackRxPPacket;
-        if (receivedRxPPacket.isFIN() && !receivedRxPPacket.isSYN()) {
+  // The endpoint's receive filter, run on the engine thread for each
+  // datagram as it arrives. ACKs for data we sent, and duplicates of a
+  // message we have finished receiving, are dealt with here rather than
+  // queued, since both ends may be busy sending with nobody reading. The
+  // rest is left for the socket's readers.
+  private boolean handleOnArrival(DatagramPacket dgPacket) {
+    RxPPacket rxpPacket = arrivalView.wrap(dgPacket);
+
+    // A corrupted SACK block could mark lost data as delivered, so leave
+    // anything that fails the checksum for its reader to drop.
+    if (!isIntact(rxpPacket)) {
+      return false;
+    }
 
-          // System.out.println("Received FIN: Close Connection");
-          ackRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(receivedRxPPacket));
+    SendPipeline pipeline = sendPipeline;
+    if (pipeline != null && pipeline.onACK(rxpPacket, dgPacket)) {
+      return true;
+    }
 
-          // Send ACK
-          DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-          dg.setAddress(dgPacket.getAddress());
-          dg.setPort(dgPacket.getPort());
-          dgSocket.send(dg);
+    try {
+      return answerTimeWait(rxpPacket, dgPacket);
+    } catch (IOException e) {
+      return true;
+    }
+  }
 
-          // System.out.println("Sending ACK in Response to FIN: " + ackRxPPacket.getACKNum());
+  // Starts TIME_WAIT for the message finalACK completed.
+  private void enterTimeWait(RxPPacket finalACK) {
+    synchronized (timeWaitACK) {
+      timeWaitACK.copyFrom(finalACK);
+      timeWaitUntilNanos = System.nanoTime() + TIME_WAIT_MILLIS * 1000000;
+    }
+  }
+
+  // Recognises a packet about a message we have already received in full.
+  // A duplicate of its data, while in TIME_WAIT, gets that message's final
+  // ACK again, in case the sender never got it. The sender's PSH+ACK
+  // saying it did ends TIME_WAIT; its ACK number is in our sequence
+  // space, not the peer's, so it must not reach a SendWindow. Returns true
+  // if the packet was either.
+  private boolean answerTimeWait(RxPPacket packet, DatagramPacket dgPacket) throws IOException {
+    if (packet.isPSH() && packet.isACK() && !packet.isSYN()
+        && packet.getSeqNum() == nextReceiveSeqNum) {
+      synchronized (timeWaitACK) {
+        timeWaitUntilNanos = System.nanoTime();
+      }
+      return true;
+    }
 
-          connectionManager.updateConnection(ackRxPPacket);
+    if (packet.isACK() || packet.isSYN() || packet.isFIN()
+        || packet.getSeqNum() >= nextReceiveSeqNum) {
+      return false;
+    }
 
-          // Send a FIN (if server, otherwise close)
-          if (!connectionManager.getConnection(ackRxPPacket).isClient()) {
+    synchronized (timeWaitACK) {
+      if (System.nanoTime() - timeWaitUntilNanos < 0) {
+        timeWaitACK.toDatagramPacket(timeWaitDatagram);
+        timeWaitDatagram.setAddress(dgPacket.getAddress());
+        timeWaitDatagram.setPort(dgPacket.getPort());
+        endpoint.send(timeWaitDatagram);
+      }
+    }
+    return true;
+  }
 
-            // Server send FIN (Received FIN from Client and ACKd that FIN)
-            RxPPacket finRxPPacket = connectionManager.getNextClosePacket(connectionManager.getConnection(receivedRxPPacket));
+  // Sends a cumulative ACK for everything before expectedSeqNum, plus SACK
+  // blocks for anything held in the reorder buffer. PSH is echoed once the
+  // whole message has arrived.
+  private RxPPacket sendDataACK(int expectedSeqNum, boolean psh, DatagramPacket dgPacket) throws IOException {
+    return sendDataACK(expectedSeqNum, psh, dgPacket.getAddress(), dgPacket.getPort());
+  }
 
-            // send FIN
-            dg = finRxPPacket.asDatagramPacket();
-            dg.setAddress(dgPacket.getAddress());
-            dg.setPort(dgPacket.getPort());
-            dgSocket.send(dg);
+  private RxPPacket sendDataACK(int expectedSeqNum, boolean psh, InetAddress address, int port) throws IOException {
+    RxPPacket ackRxPPacket = buildDataACK(expectedSeqNum, psh, port);
 
-            // System.out.println("Sending FIN to Client");
+    // It says at least as much as any ACK held back
+    packetsUnacked = 0;
+    cancelDelayedACK();
 
-            connectionManager.updateConnection(finRxPPacket);
+    // Send ACK
+    ackRxPPacket.toDatagramPacket(dataACKDatagram);
+    dataACKDatagram.setAddress(address);
+    dataACKDatagram.setPort(port);
+    endpoint.send(dataACKDatagram);
 
-          } else {
+    // System.out.println("Sending ACK: " + ackRxPPacket.getACKNum());
+    return ackRxPPacket;
+  }
 
-            // Client close (received FIN from Server)
-            this.dgSocket.close();
-            return null;
-          }
-        } else {
+  // ACKs a message received in full, up to expectedSeqNum, and starts its
+  // TIME_WAIT.
+  private void acknowledgeMessage(int expectedSeqNum, InetAddress address, int port) throws IOException {
+    nextReceiveSeqNum = expectedSeqNum;
+    lastMessageReceivedNanos = System.nanoTime();
+
+    // An answer would only queue behind data already waiting for the
+    // window, which may well be waiting for this very ACK
+    SendPipeline pipeline = sendPipeline;
+    boolean backlogged = pipeline != null && pipeline.isBacklogged();
+
+    RxPPacket ackRxPPacket;
+    if (interactive && !backlogged) {
+      ackRxPPacket = delayDataACK(expectedSeqNum, true, address, port);
+    } else {
+      ackRxPPacket = sendDataACK(expectedSeqNum, true, address, port);
+    }
+    enterTimeWait(ackRxPPacket);
+  }
 
-          // Make an ACK
-          ackRxPPacket = new RxPPacket();
-          ackRxPPacket.setACK(true);
-          ackRxPPacket.setACKNum(receivedRxPPacket.getSeqNum());
-          ackRxPPacket.setDestPort((short)dgPacket.getPort());
-          ackRxPPacket.setSrcPort((short)dgSocket.getLocalPort());
-          if (receivedRxPPacket.isPSH()) {
-            ackRxPPacket.setPSH(true);
-            PSH_ACKsent = true;
-            // System.out.println("Sending PSH+ACK");
-          }
-          ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
+  // Builds an ACK like sendDataACK() but holds it back for up to
+  // DELAYED_ACK_MILLIS, so that data we send, or a later ACK, can carry
+  // it instead. It replaces any ACK already held back, and keeps that
+  // one's deadline.
+  private RxPPacket delayDataACK(int expectedSeqNum, boolean psh, InetAddress address, int port) {
+    RxPPacket ackRxPPacket = buildDataACK(expectedSeqNum, psh, port);
+
+    synchronized (delayedACK) {
+      delayedACK.copyFrom(ackRxPPacket);
+      delayedACKDatagram.setAddress(address);
+      delayedACKDatagram.setPort(port);
+      if (!ackDelayed) {
+        delayedACKTimer = RetransmitScheduler.getInstance().schedule(this::sendDelayedACK, DELAYED_ACK_MILLIS);
+      }
+      ackDelayed = true;
+    }
+    return ackRxPPacket;
+  }
 
-          // Send ACK
-          DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-          dg.setAddress(dgPacket.getAddress());
-          dg.setPort(dgPacket.getPort());
-          dgSocket.send(dg);
+  // Nothing carried the ACK held back in time, so send it alone.
+  private void sendDelayedACK() {
+    synchronized (delayedACK) {
+      if (!ackDelayed) {
+        return;
+      }
+      ackDelayed = false;
+      delayedACKTimer = null;
+      packetsUnacked = 0;
+      if (delayedACK.isPSH()) {
+        interactive = false;
+      }
 
-          // System.out.println("Sending ACK: " + ackRxPPacket.getACKNum());
+      delayedACK.toDatagramPacket(delayedACKDatagram);
+      try {
+        endpoint.send(delayedACKDatagram);
+      } catch (IOException e) {
+        // Like a lost ACK; the sender will resend and we answer from TIME_WAIT
+      }
+    }
+  }
 
-          connectionManager.updateConnection(ackRxPPacket);
+  // Moves an ACK held back onto a data packet about to be sent. The packet
+  // keeps it for any retransmission, where it is merely out of date.
+  private void piggybackDelayedACK(RxPPacket packet) {
+    if (!ackDelayed || packet.isSYN() || packet.isACK() || packet.isFIN()) {
+      return;
+    }
 
-          // When Client sends ack or server sends FIN remove connection or you could timeout
-          if (connectionManager.getConnection(ackRxPPacket).isClientSentACK()) {
-            // connectionManager.removeConnection(ackRxPPacket.getSrcPort(), ackRxPPacket.getDestPort());
-            return null;
-          }
-        }
+    synchronized (delayedACK) {
+      if (!ackDelayed) {
+        return;
       }
+      packet.setPiggybackedACK(true);
+      packet.setACKNum(delayedACK.getACKNum());
+      packet.setWindowSize(delayedACK.getWindowSize());
+      packet.setChecksum(packet.calculateChecksum());
+      packetsUnacked = 0;
+      cancelDelayedACK();
     }
+  }
 
-    // If tempPackets pass all the tests (not dup, corrupt, out of order)
-    // give the application a byte buffer
-    List<Byte> receivedByteList = new ArrayList<>();
-    for (RxPPacket tempPacket : tempRxPPacketList) {
+  private void cancelDelayedACK() {
+    if (!ackDelayed) {
+      return;
+    }
 
-      // getPayload returns an array of bytes, add each byte to the byteList
-      for (int i = 0; i < tempPacket.getPacketData().length; i++) {
-        receivedByteList.add(tempPacket.getPacketData()[i]);
+    synchronized (delayedACK) {
+      ackDelayed = false;
+      if (delayedACKTimer != null) {
+        delayedACKTimer.cancel(false);
+        delayedACKTimer = null;
       }
     }
+  }
+
+  // Builds the ACK sendDataACK() sends.
+  private RxPPacket buildDataACK(int expectedSeqNum, boolean psh, int port) {
+
+    // Make an ACK, reusing the last one's buffer
+    RxPPacket ackRxPPacket = dataACK.reset();
+    ackRxPPacket.setACK(true);
+    ackRxPPacket.setACKNum(expectedSeqNum - 1);
+    ackRxPPacket.setDestPort((short)port);
+    ackRxPPacket.setSrcPort((short)endpoint.getLocalPort());
+    if (psh) {
+      ackRxPPacket.setPSH(true);
+      // System.out.println("Sending PSH+ACK");
+    }
 
-    // Byte to byte ...
-    byte[] receivedBytes = new byte[receivedByteList.size()];
-    for (int i = 0; i < receivedBytes.length; i++) {
-      receivedBytes[i] = receivedByteList.get(i);
+    int blocks = reorderBuffer.getHeldRanges(expectedSeqNum, sackStarts, sackEnds);
+    for (int i = 0; i < blocks; i++) {
+      ackRxPPacket.addSACKBlock(sackStarts[i], sackEnds[i]);
     }
+    advertiseWindow(ackRxPPacket);
+    ackRxPPacket.setIntegrity(integrityMode);
+    ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
 
-    return receivedBytes;
+    connectionManager.updateConnection(destAddress, ackRxPPacket);
+    return ackRxPPacket;
   }
 
   public void terminate() {
 
-    Connection myConnection = connectionManager.getConnection(this.srcPort, this.destPort);
+    // Nothing still in flight will be finished, and its ACKs must not take
+    // the terminate's
+    abandonSends(new IOException("Connection terminated"));
+
+    Connection myConnection = connectionManager.getConnection(destAddress, this.srcPort, this.destPort);
     RxPPacket terminateRxPPacket = connectionManager.getTerminatePacket(myConnection);
     sendRxPPackets(new RxPPacket[] { terminateRxPPacket });
   }
@@ -828,115 +1848,84 @@ public class RxPSocket {
   public boolean sendRxPPackets(RxPPacket[] rxpPacketsToSend) {
 
     this.isClientSending = true;
-    int oldestUnackedPointer = 0;
-    boolean PSH_ACKsent = false;
 
-    // Set a receive timeout so we can resend after a time, rather
+    // Set a receive timeout so we can check for a dead peer, rather
     // than just having it block
-    int timeoutMillis = 300;
     try {
-      dgSocket.setSoTimeout(timeoutMillis);
+      endpoint.setSoTimeout((int) rttEstimator.getRetransmitTimeout());
     } catch(SocketException se) {
       // TODO: Add error handling
     }
 
-    // The timer task is charged with resending all packets in the window
-    // every time it is fired. It needs to be encapsulated in a class because
-    // Async tasks need to work on constants, not variables.
-    Timer timer = new Timer();
+    SendWindow sendWindow = new SendWindow(rxpPacketsToSend, peerWindow, rttEstimator, congestionController);
+    sendPackets(sendWindow.takePacketsToSend());
 
-    // Resend the current data every 300ms there is not an ACKed packet.
-    ResendTimerTask resendTask = new ResendTimerTask(oldestUnackedPointer, windowSize, rxpPacketsToSend);
-    timer.scheduleAtFixedRate(resendTask, 0, timeoutMillis);
+    // The timer task is charged with resending every packet in the window
+    // the receiver has not reported each time it is fired, whenever a
+    // retransmission timeout passes without an ACKed packet. It runs on the
+    // shared RetransmitScheduler thread, so re-arming it is cheap.
+    ResendTimerTask resendTask = new ResendTimerTask(sendWindow);
+    resendTask.restart();
 
-    // TODO: 2) Set Window Size
-    byte[] packetPayload = new byte[RxPPacket.DEFAULT_PACKET_SIZE];
-    DatagramPacket dgPacket = new DatagramPacket(packetPayload, packetPayload.length);
+    DatagramPacket dgPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+    RxPPacket packetView = new RxPPacket(); // Reused for every datagram received
 
     while (true) {
       try {
         // Wait for the ACK
-        dgSocket.receive(dgPacket);
+        endpoint.receive(dgPacket);
 
-        resendTask.resetTimesNoResponse();
-        RxPPacket rxpPacket = new RxPPacket(dgPacket);
+        RxPPacket rxpPacket = packetView.wrap(dgPacket);
+
+        // A corrupted SACK block could mark lost data as delivered, so drop
+        // anything that fails the checksum.
+        if (!isIntact(rxpPacket)) {
+          continue;
+        }
 
         if (!rxpPacket.isSYN() && rxpPacket.isACK()) {
 
           int ackNumber = rxpPacket.getACKNum();
-          int expectedAckNumber = rxpPacketsToSend[oldestUnackedPointer].getSeqNum();
           // System.out.println("ACK Received: " + ackNumber);
 
           // If FIN ACK?
-          if (connectionManager.updateConnection(rxpPacket)) {
+          if (connectionManager.updateConnection(destAddress, rxpPacket)) {
 
             // System.out.println("Received FIN ACK");
-            timer.cancel();
-            timer.purge();
             resendTask.cancel();
-            this.isClientSending = false;
+            clientSendingDone();
             return true;
           }
 
           // if the ACK is responding to a terminate packet return true
-          if (oldestUnackedPointer < rxpPacketsToSend.length && ackNumber == 666) {
+          if (!sendWindow.isComplete() && ackNumber == 666) {
 
             // System.out.println("Terminate ACK Received");
-            oldestUnackedPointer++;
             // Reset timer
-            timer.cancel();
-            timer.purge();
             resendTask.cancel();
-            this.isClientSending = false;
+            clientSendingDone();
             return true;
           }
 
-          // If the ACK is equal to the oldest unACKed packet, move the index by one
+          // The ACK is cumulative, so everything up to it has arrived.
           // Otherwise, wait until it comes OR timeout occurs.
-          if (oldestUnackedPointer < rxpPacketsToSend.length &&
-              ackNumber == expectedAckNumber) {
-            oldestUnackedPointer++;
-            boolean success = resendTask.incrementOldestUnackedPointer();
-
-            // Reset timer
-            timer.cancel();
-            timer.purge();
-            timer = new Timer();
-            resendTask = new ResendTimerTask(oldestUnackedPointer, windowSize, rxpPacketsToSend);
-            timer.scheduleAtFixedRate(resendTask, timeoutMillis, timeoutMillis);
+          synchronized (sendWindow) {
+            applyDataACK(sendWindow, resendTask, rxpPacket, true);
           }
 
-          if (rxpPacket.isPSH() && ackNumber == expectedAckNumber) {
+          if (rxpPacket.isPSH() && sendWindow.isComplete()) {
             // If the received packet is a PSH+ACK, then send a PSH+ACK and quit.
-            RxPPacket ackRxPPacket = new RxPPacket();
-            ackRxPPacket.setACK(true);
-            ackRxPPacket.setACKNum(rxpPacket.getACKNum()+1);
-            ackRxPPacket.setSeqNum(rxpPacket.getACKNum()+1);
-            ackRxPPacket.setDestPort((short)dgPacket.getPort());
-            ackRxPPacket.setSrcPort((short)dgSocket.getLocalPort());
-            ackRxPPacket.setPSH(true);
-            ackRxPPacket.setChecksum(ackRxPPacket.calculateChecksum());
-
-            // Send ACK+PSH
-            DatagramPacket dg = ackRxPPacket.asDatagramPacket();
-            dg.setAddress(dgPacket.getAddress());
-            dg.setPort(dgPacket.getPort());
-            dgSocket.send(dg);
-            // System.out.println("Sending PSH+ACK");
-            timer.cancel();
-            timer.purge();
+            sendEndConfirmation(ackNumber, dgPacket);
             resendTask.cancel();
-            this.isClientSending = false;
+            clientSendingDone();
             return true;
           }
         }
       } catch(IOException e) {
-        // System.err.println("Received Nothing " + resendTask.getNumTimesNoResponse() + " Times");
-        if (resendTask.getNumTimesNoResponse() == 40) {
-          timer.cancel();
-          timer.purge();
+        // System.err.println("Received Nothing for " + resendTask.getMillisNoResponse() + " ms");
+        if (resendTask.getMillisNoResponse() >= CONNECTION_TIMEOUT_MILLIS) {
           resendTask.cancel();
-          this.isClientSending = false;
+          clientSendingDone();
           return false;
         }
       }
@@ -0,0 +1,333 @@
+import java.util.List;
+import java.util.ArrayList;
+
+// Per-packet transmit state for outgoing data. Tracks which packets have
+// been sent, which the receiver has cumulatively ACKed, and which it has
+// reported holding out of order, so that only missing packets are resent.
+// Cumulative ACKs also feed round trip samples to the connection's
+// RttEstimator and growth to its CongestionController.
+//
+// Three duplicate ACKs in a row have the oldest packet resent at once, as
+// TCP's fast retransmit does, along with any other hole the receiver's
+// SACK blocks show. NewReno-style recovery then resends each further hole
+// a partial ACK or SACK uncovers, until everything sent before the loss is
+// ACKed. The window is cut once per loss and grows again from there.
+//
+// Packets live in a ring, so messages can be fed in with offer() as they
+// are written, one after another, and only the unacknowledged part is ever
+// held. Positions below are counted from the first packet offered and
+// mapped onto the ring with slot().
+public class SendWindow {
+
+  public static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+  private RxPPacket[] packets;
+  private boolean[] sacked;
+  private boolean[] lost;
+  private boolean[] retransmitted;
+  private long[] sentAtNanos;
+  private long[] sentOrder;  // Sends so far when each packet last went out
+  private int firstSeqNum;
+
+  private RttEstimator rttEstimator;
+  private CongestionController congestionController;
+  private PacketPool pool;
+
+  private int oldestUnacked; // Position of the oldest packet not yet ACKed
+  private int nextToSend;    // Position of the first packet never sent
+  private int nextToOffer;   // Position the next offered packet will take
+  private boolean finished;  // No more packets will be offered
+  private int inFlight;      // Sent packets not ACKed, SACKed or presumed lost
+  private int peerRightEdge; // Highest sequence number the peer has room for
+  private int duplicateACKs; // ACKs in a row that did not move the window
+  private boolean recovering; // Resending after a fast retransmit
+  private int recover;       // Last position outstanding at the last loss
+  private long sends;        // Packets sent, new or resent
+  private long sackedOrder;  // Latest send the receiver has SACKed
+
+  // A window over a complete message.
+  public SendWindow(RxPPacket[] packets, int peerWindow, RttEstimator rttEstimator,
+                    CongestionController congestionController) {
+    this(packets.length, packets[0].getSeqNum(), peerWindow, rttEstimator, congestionController);
+    for (RxPPacket packet : packets) {
+      offer(packet);
+    }
+    finish();
+  }
+
+  public SendWindow(int capacity, int firstSeqNum, int peerWindow, RttEstimator rttEstimator,
+                    CongestionController congestionController) {
+    this(capacity, firstSeqNum, peerWindow, rttEstimator, congestionController, null);
+  }
+
+  // An empty window that holds up to capacity unacknowledged packets,
+  // starting at firstSeqNum. Fill it with offer() and call finish() after
+  // the last packet. Packets are released to pool, if given, once ACKed.
+  public SendWindow(int capacity, int firstSeqNum, int peerWindow, RttEstimator rttEstimator,
+                    CongestionController congestionController, PacketPool pool) {
+    this.packets = new RxPPacket[capacity];
+    this.sacked = new boolean[capacity];
+    this.lost = new boolean[capacity];
+    this.retransmitted = new boolean[capacity];
+    this.sentAtNanos = new long[capacity];
+    this.sentOrder = new long[capacity];
+    this.rttEstimator = rttEstimator;
+    this.congestionController = congestionController;
+    this.pool = pool;
+    this.firstSeqNum = firstSeqNum;
+
+    this.oldestUnacked = 0;
+    this.nextToSend = 0;
+    this.nextToOffer = 0;
+    this.finished = false;
+    this.inFlight = 0;
+    this.duplicateACKs = 0;
+    this.recovering = false;
+    this.recover = -1;
+    this.peerRightEdge = firstSeqNum - 1 + peerWindow;
+  }
+
+  private int slot(int position) {
+    return position % packets.length;
+  }
+
+  // Queues the next packet of the message. Returns false if the ring is
+  // full of unacknowledged packets, in which case wait for ACKs and retry.
+  public synchronized boolean offer(RxPPacket packet) {
+    if (finished || nextToOffer - oldestUnacked >= packets.length) {
+      return false;
+    }
+
+    int i = slot(nextToOffer);
+    packets[i] = packet;
+    sacked[i] = false;
+    lost[i] = false;
+    retransmitted[i] = false;
+    nextToOffer++;
+    return true;
+  }
+
+  // Marks the message as complete once every offered packet is ACKed.
+  public synchronized void finish() {
+    finished = true;
+  }
+
+  // Returns the packets that may go out now, lost ones first and then ones
+  // never sent, for as long as the congestion window has room and the peer
+  // has advertised space for them. They are counted as in flight from here
+  // on. The oldest packet, once lost, is resent even if the window is full,
+  // since nothing else can move it.
+  public synchronized List<RxPPacket> takePacketsToSend() {
+    List<RxPPacket> toSend = new ArrayList<>();
+    int window = getEffectiveWindow();
+
+    for (int p = oldestUnacked; p < nextToSend && (inFlight < window || p == oldestUnacked); p++) {
+      int i = slot(p);
+      if (lost[i]) {
+        lost[i] = false;
+        retransmitted[i] = true;
+        sentOrder[i] = ++sends;
+        inFlight++;
+        toSend.add(packets[i]);
+      }
+    }
+
+    long now = System.nanoTime();
+    while (nextToSend < nextToOffer && inFlight < window
+           && firstSeqNum + nextToSend <= peerRightEdge) {
+      int i = slot(nextToSend);
+      sentAtNanos[i] = now;
+      sentOrder[i] = ++sends;
+      inFlight++;
+      toSend.add(packets[i]);
+      nextToSend++;
+    }
+    return toSend;
+  }
+
+  // Sends the next new packet even though the peer advertised no room, so
+  // that its ACK tells us when the window reopens.
+  public synchronized List<RxPPacket> takeWindowProbe() {
+    List<RxPPacket> probe = new ArrayList<>();
+    if (isPeerWindowClosed()) {
+      int i = slot(nextToSend);
+      sentAtNanos[i] = System.nanoTime();
+      sentOrder[i] = ++sends;
+      inFlight++;
+      probe.add(packets[i]);
+      nextToSend++;
+    }
+    return probe;
+  }
+
+  // True when nothing is outstanding but the peer has no room for more.
+  public synchronized boolean isPeerWindowClosed() {
+    return inFlight == 0 && nextToSend < nextToOffer
+        && firstSeqNum + nextToSend > peerRightEdge;
+  }
+
+  // Records the receive window the peer advertised along with ackNum. The
+  // right edge never moves backwards.
+  public synchronized void updatePeerWindow(int ackNum, int window) {
+    peerRightEdge = Math.max(peerRightEdge, ackNum + window);
+  }
+
+  // The retransmission timer expired, so everything still outstanding that
+  // the receiver has not reported is presumed lost.
+  public synchronized void timeout() {
+    for (int p = oldestUnacked; p < nextToSend; p++) {
+      markLost(slot(p));
+    }
+    // The resends will draw duplicate ACKs of their own, which are no
+    // sign of a new loss until everything outstanding now is ACKed
+    duplicateACKs = 0;
+    recovering = false;
+    recover = nextToSend - 1;
+    congestionController.onTimeout();
+  }
+
+  // Applies a cumulative ACK. Returns true if the window moved forward.
+  public synchronized boolean acknowledge(int ackNum) {
+    int position = ackNum - firstSeqNum;
+    if (position < oldestUnacked || position >= nextToSend) {
+      return false;
+    }
+
+    // Karn's rule: a retransmitted packet's ACK could belong to either
+    // copy, so only time ranges that were each sent exactly once.
+    boolean ambiguous = false;
+    for (int p = oldestUnacked; p <= position; p++) {
+      int i = slot(p);
+      ambiguous = ambiguous || retransmitted[i];
+      if (!sacked[i] && !lost[i]) {
+        inFlight--;
+      }
+      // The ACKed packet's buffer can be reused
+      if (pool != null) {
+        pool.release(packets[i]);
+      }
+      packets[i] = null;
+    }
+    if (!ambiguous) {
+      rttEstimator.addSample(System.nanoTime() - sentAtNanos[slot(position)]);
+    }
+
+    int packetsAcked = position + 1 - oldestUnacked;
+    oldestUnacked = position + 1;
+    duplicateACKs = 0;
+
+    congestionController.onAck(packetsAcked, rttEstimator.getSmoothedRtt());
+
+    if (recovering) {
+      if (position >= recover) {
+        recovering = false;
+      } else {
+        // A partial ACK: the packet after it was lost too
+        markLost(slot(oldestUnacked));
+        markHolesLost();
+      }
+    }
+    return true;
+  }
+
+  // Counts a cumulative ACK that repeats the last one while packets are
+  // outstanding. The third in a row presumes the oldest packet lost,
+  // without waiting for the timer, and cuts the congestion window as for
+  // a loss; takePacketsToSend() then resends it. Returns true if so, as
+  // the retransmission timer should then start over.
+  public synchronized boolean duplicateAcknowledge(int ackNum) {
+    if (ackNum - firstSeqNum != oldestUnacked - 1 || oldestUnacked >= nextToSend) {
+      return false;
+    }
+    duplicateACKs++;
+    if (recovering) {
+      markHolesLost();
+      return false;
+    }
+    if (duplicateACKs < DUPLICATE_ACK_THRESHOLD) {
+      return false;
+    }
+    if (oldestUnacked <= recover) {
+      // Still resending what a timeout presumed lost, with the window
+      // already cut for it, so just find any resend that was lost too
+      markHolesLost();
+      return false;
+    }
+
+    recovering = true;
+    recover = nextToSend - 1;
+    markLost(slot(oldestUnacked));
+    markHolesLost();
+    congestionController.onLoss();
+    return true;
+  }
+
+  // Presumes lost each packet the receiver has SACKed past. A packet
+  // already resent is only presumed lost again once the receiver has
+  // SACKed DUPLICATE_ACK_THRESHOLD packets sent after the resend, the same
+  // allowance for reordering a first loss gets.
+  private void markHolesLost() {
+    int highestSacked = nextToSend - 1;
+    while (highestSacked > oldestUnacked && !sacked[slot(highestSacked)]) {
+      highestSacked--;
+    }
+    for (int p = oldestUnacked; p < highestSacked; p++) {
+      int i = slot(p);
+      if (!retransmitted[i] || sentOrder[i] + DUPLICATE_ACK_THRESHOLD <= sackedOrder) {
+        markLost(i);
+      }
+    }
+  }
+
+  // Records that the receiver is holding packets start..end (inclusive).
+  // Returns true if any of them had not been reported before.
+  public synchronized boolean selectiveAcknowledge(int start, int end) {
+    int from = Math.max(start - firstSeqNum, oldestUnacked);
+    int to = Math.min(end - firstSeqNum, nextToSend - 1);
+    boolean news = false;
+    for (int p = from; p <= to; p++) {
+      int i = slot(p);
+      if (!sacked[i]) {
+        if (lost[i]) {
+          lost[i] = false;
+        } else {
+          inFlight--;
+        }
+        sacked[i] = true;
+        sackedOrder = Math.max(sackedOrder, sentOrder[i]);
+        news = true;
+      }
+    }
+    return news;
+  }
+
+  private void markLost(int i) {
+    if (!sacked[i] && !lost[i]) {
+      lost[i] = true;
+      inFlight--;
+    }
+  }
+
+  public synchronized int getEffectiveWindow() {
+    return Math.max(1, congestionController.getWindow());
+  }
+
+  // True once the message is finished and every packet has been ACKed.
+  public synchronized boolean isComplete() {
+    return finished && oldestUnacked >= nextToOffer;
+  }
+
+  // True once every packet offered so far has been ACKed.
+  public synchronized boolean isDrained() {
+    return oldestUnacked >= nextToOffer;
+  }
+
+  // True if offered packets are waiting for the window to open.
+  public synchronized boolean hasUnsent() {
+    return nextToSend < nextToOffer;
+  }
+
+  public synchronized int getOldestUnackedSeqNum() {
+    return firstSeqNum + oldestUnacked;
+  }
+}
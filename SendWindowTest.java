@@ -0,0 +1,182 @@
+import java.util.List;
+
+// Checks SendWindow's loss recovery without a network. There is no test
+// framework here, so run it directly: java SendWindowTest
+public class SendWindowTest {
+
+  private static final int PACKETS = 10;
+
+  // Holds the window fixed and counts the losses it is told about
+  private static class CountingController implements CongestionController {
+    private int losses = 0;
+    private int timeouts = 0;
+
+    public int getWindow() {
+      return PACKETS;
+    }
+
+    public void onAck(int packetsAcked, double smoothedRttMillis) {
+    }
+
+    public void onLoss() {
+      losses++;
+    }
+
+    public void onTimeout() {
+      timeouts++;
+    }
+  }
+
+  public static void main(String[] args) {
+    threeDuplicateACKsResendOnce();
+    partialACKResendsNextHole();
+    timeoutEndsRecovery();
+    lostResendGoesAgain();
+    lostResendAfterTimeoutGoesAgain();
+    System.out.println("SendWindowTest passed");
+  }
+
+  // The third duplicate ACK resends the packets the receiver is missing,
+  // and only once
+  private static void threeDuplicateACKsResendOnce() {
+    CountingController controller = new CountingController();
+    SendWindow window = sentWindow(controller);
+    check(window.acknowledge(1), "ACK of packet 1 moves the window");
+    check(window.selectiveAcknowledge(4, PACKETS), "SACK of packets 4 on is news");
+    check(!window.selectiveAcknowledge(4, PACKETS), "the same SACK again is not");
+
+    check(!window.duplicateAcknowledge(1), "first duplicate ACK is not a loss");
+    check(!window.duplicateAcknowledge(1), "second duplicate ACK is not a loss");
+    check(window.takePacketsToSend().isEmpty(), "nothing resent before the third");
+    check(window.duplicateAcknowledge(1), "third duplicate ACK is a loss");
+    checkSeqNums(window.takePacketsToSend(), 2, 3);
+
+    check(!window.duplicateAcknowledge(1), "fourth duplicate ACK is not a new loss");
+    check(window.takePacketsToSend().isEmpty(), "packets 2 and 3 are not resent again");
+    check(controller.losses == 1, "one loss, got " + controller.losses);
+  }
+
+  // An ACK short of everything outstanding at the loss means the packet
+  // after it was lost as well
+  private static void partialACKResendsNextHole() {
+    CountingController controller = new CountingController();
+    SendWindow window = sentWindow(controller);
+    window.acknowledge(1);
+    for (int i = 0; i < SendWindow.DUPLICATE_ACK_THRESHOLD; i++) {
+      window.duplicateAcknowledge(1);
+    }
+    checkSeqNums(window.takePacketsToSend(), 2);
+
+    check(window.acknowledge(2), "partial ACK moves the window");
+    checkSeqNums(window.takePacketsToSend(), 3);
+    check(controller.losses == 1, "partial ACK is not a new loss, got " + controller.losses);
+
+    // Recovery ends once everything outstanding at the loss is ACKed
+    check(window.acknowledge(PACKETS), "full ACK moves the window");
+    check(window.isComplete(), "all packets ACKed");
+  }
+
+  // A timeout resends everything outstanding, and the duplicate ACKs
+  // those resends draw are not taken for a new loss
+  private static void timeoutEndsRecovery() {
+    CountingController controller = new CountingController();
+    SendWindow window = sentWindow(controller);
+    window.acknowledge(1);
+    for (int i = 0; i < SendWindow.DUPLICATE_ACK_THRESHOLD; i++) {
+      window.duplicateAcknowledge(1);
+    }
+    checkSeqNums(window.takePacketsToSend(), 2);
+
+    window.timeout();
+    checkSeqNums(window.takePacketsToSend(), 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    check(controller.timeouts == 1, "one timeout, got " + controller.timeouts);
+
+    for (int i = 0; i < SendWindow.DUPLICATE_ACK_THRESHOLD; i++) {
+      check(!window.duplicateAcknowledge(1), "duplicate ACK after a timeout is not a loss");
+    }
+    check(window.takePacketsToSend().isEmpty(), "nothing resent by duplicate ACKs");
+    check(controller.losses == 1, "no loss after the timeout, got " + controller.losses);
+  }
+
+  // A resend that is lost as well goes again once the receiver SACKs
+  // packets sent after it, rather than waiting for the timer
+  private static void lostResendGoesAgain() {
+    CountingController controller = new CountingController();
+    SendWindow window = sentWindow(controller, 2 * PACKETS);
+    window.acknowledge(1);
+    window.selectiveAcknowledge(3, 5);
+    for (int i = 0; i < SendWindow.DUPLICATE_ACK_THRESHOLD; i++) {
+      window.duplicateAcknowledge(1);
+    }
+    checkSeqNums(window.takePacketsToSend(), 2, 11, 12, 13, 14);
+
+    // The resend of 2 is lost. Two packets sent after it arriving could
+    // still be reordering.
+    window.selectiveAcknowledge(3, 12);
+    window.duplicateAcknowledge(1);
+    check(!contains(window.takePacketsToSend(), 2), "packet 2 is not resent after two later sends");
+
+    window.selectiveAcknowledge(3, 13);
+    window.duplicateAcknowledge(1);
+    check(contains(window.takePacketsToSend(), 2), "packet 2 is resent after three later sends");
+    check(controller.losses == 1, "one loss, got " + controller.losses);
+  }
+
+  // Likewise for what a timeout resent, without cutting the window again
+  private static void lostResendAfterTimeoutGoesAgain() {
+    CountingController controller = new CountingController();
+    SendWindow window = sentWindow(controller, 2 * PACKETS);
+    window.timeout();
+    checkSeqNums(window.takePacketsToSend(), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+
+    // The resend of 2 is lost
+    window.acknowledge(1);
+    window.selectiveAcknowledge(3, 10);
+    check(!window.duplicateAcknowledge(1), "first duplicate ACK is not a loss");
+    check(!window.duplicateAcknowledge(1), "second duplicate ACK is not a loss");
+    check(!contains(window.takePacketsToSend(), 2), "packet 2 is not resent before the third");
+    check(!window.duplicateAcknowledge(1), "third duplicate ACK does not start recovery");
+    check(contains(window.takePacketsToSend(), 2), "packet 2 is resent after the third");
+    check(controller.losses == 0, "no loss after the timeout, got " + controller.losses);
+  }
+
+  // A window with packets 1 to PACKETS all sent once
+  private static SendWindow sentWindow(CongestionController controller) {
+    return sentWindow(controller, PACKETS);
+  }
+
+  // A window over packets 1 to count, with the first PACKETS sent once
+  private static SendWindow sentWindow(CongestionController controller, int count) {
+    SendWindow window = new SendWindow(count, 1, count, new RttEstimator(), controller);
+    for (int seqNum = 1; seqNum <= count; seqNum++) {
+      window.offer(new RxPPacket((short) 1, (short) 2, seqNum, 0, false, false, false, seqNum == count));
+    }
+    window.finish();
+    checkSeqNums(window.takePacketsToSend(), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    return window;
+  }
+
+  private static boolean contains(List<RxPPacket> packets, int seqNum) {
+    for (RxPPacket packet : packets) {
+      if (packet.getSeqNum() == seqNum) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void checkSeqNums(List<RxPPacket> packets, int... seqNums) {
+    check(packets.size() == seqNums.length,
+        "expected " + seqNums.length + " packets, got " + packets.size());
+    for (int i = 0; i < seqNums.length; i++) {
+      check(packets.get(i).getSeqNum() == seqNums[i],
+          "expected packet " + seqNums[i] + ", got " + packets.get(i).getSeqNum());
+    }
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}